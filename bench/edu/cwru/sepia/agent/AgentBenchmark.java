@@ -0,0 +1,382 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the hot paths of RLAgent on synthetic battles of 5v5, 10v10, 50v50 and 200v200.
+ * Each benchmark reports throughput and the bytes allocated per operation, measured with the per thread
+ * allocation counter of the JVM (the same counter the JMH GC profiler reads).
+ *
+ * Usage: AgentBenchmark [sizes=5,10,50,200] [benchmarks=eventTurn,jointTurn,replayTurn,backgroundReplayTurn,quietTurn,rewardSweep,weightUpdate]
+ *                       [warmup=3] [iterations=5] [millis=1000] [check=false]
+ *
+ * Run it with the same classpath as the agent, e.g.
+ * java -cp lib/SEPIA.jar:classes edu.cwru.sepia.agent.AgentBenchmark sizes=10,200
+ *
+ * With check=true it is an allocation regression test: the run exits with status 1 if any benchmark
+ * allocates more per operation than its budget, see allocationBudget.
+ */
+public class AgentBenchmark {
+
+    public static final int[] DEFAULT_SIZES = {5, 10, 50, 200};
+
+    /**
+     * The turn the fixtures are built around. Two fixtures on neighbouring turns are stepped in turn so the
+     * agent's per turn caches are rebuilt on every operation, like they are in a real game.
+     */
+    private static final int TURN = 10;
+    private static final long SEED = 42;
+
+    /**
+     * Allocation budgets only hold up to this army size. Beyond it unit IDs go past 127 and SEPIA's
+     * State.getUnit boxes them, which grows with the army.
+     */
+    public static final int MAX_CHECKED_SIZE = 50;
+
+    /**
+     * Turns a fresh agent plays before it is measured, so the attacks ActionMap caches for every
+     * footman/target pair it picks are made during setup and not counted as per turn allocation.
+     */
+    private static final int SETUP_TURNS = 100;
+
+    /**
+     * One operation that is timed. Setup runs before every iteration and is not timed.
+     */
+    private abstract static class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        abstract void setup(int armySize);
+
+        abstract void run();
+    }
+
+    /**
+     * Holds a fresh managed agent that has played the first turn of the fixture battle
+     */
+    private abstract static class AgentBenchmarkBase extends Benchmark {
+        BattleFixture first;
+        BattleFixture second;
+        RLAgent agent;
+        Hyperparameters hyperparameters = Hyperparameters.defaults();
+        boolean flip;
+
+        AgentBenchmarkBase(String name) {
+            super(name);
+        }
+
+        void setup(int armySize, boolean event) {
+            first = new BattleFixture(armySize, TURN, event, SEED);
+            second = new BattleFixture(armySize, TURN + 1, event, SEED);
+            BattleFixture start = new BattleFixture(armySize, 0, false, SEED);
+
+            // the last size's agent may have a background replay thread
+            if (agent != null) {
+                agent.close();
+            }
+            agent = new RLAgent(0, 1, hyperparameters, null);
+            agent.initialStep(start.stateView, start.historyView);
+            for (int i = 0; i < SETUP_TURNS; i++) {
+                BattleFixture fixture = next();
+                agent.middleStep(fixture.stateView, fixture.historyView);
+            }
+        }
+
+        BattleFixture next() {
+            flip = !flip;
+            return flip ? first : second;
+        }
+    }
+
+    private static List<Benchmark> createBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        // a turn where friendly footmen were hit, so the agent computes rewards, learns and replans everyone
+        benchmarks.add(new AgentBenchmarkBase("eventTurn") {
+            void setup(int armySize) {
+                setup(armySize, true);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                consume(agent.middleStep(fixture.stateView, fixture.historyView).size());
+            }
+        });
+
+        // an event turn with the footmen assigned jointly, at most 4 on an enemy
+        benchmarks.add(new AgentBenchmarkBase("jointTurn") {
+            void setup(int armySize) {
+                hyperparameters = Hyperparameters.defaults().withAssignmentCapacity(4);
+                setup(armySize, true);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                consume(agent.middleStep(fixture.stateView, fixture.historyView).size());
+            }
+        });
+
+        // an event turn that also stores the turn's transitions and replays a prioritized batch
+        benchmarks.add(new AgentBenchmarkBase("replayTurn") {
+            void setup(int armySize) {
+                hyperparameters = Hyperparameters.defaults().withReplay(1000, 32, .6, false);
+                setup(armySize, true);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                consume(agent.middleStep(fixture.stateView, fixture.historyView).size());
+            }
+        });
+
+        // the same with the batch replayed on the replay thread, only the game thread is measured
+        benchmarks.add(new AgentBenchmarkBase("backgroundReplayTurn") {
+            void setup(int armySize) {
+                hyperparameters = Hyperparameters.defaults().withReplay(1000, 32, .6, true);
+                setup(armySize, true);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                consume(agent.middleStep(fixture.stateView, fixture.historyView).size());
+            }
+        });
+
+        // a turn where nothing happened and every footman is still busy
+        benchmarks.add(new AgentBenchmarkBase("quietTurn") {
+            void setup(int armySize) {
+                setup(armySize, false);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                consume(agent.middleStep(fixture.stateView, fixture.historyView).size());
+            }
+        });
+
+        // the reward of every friendly footman on an event turn, on a new turn every time
+        benchmarks.add(new AgentBenchmarkBase("rewardSweep") {
+            void setup(int armySize) {
+                setup(armySize, true);
+                agent.middleStep(first.stateView, first.historyView);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                double reward = 0;
+                for (int footmanId : fixture.myFootmen) {
+                    reward += agent.calculateReward(fixture.stateView, fixture.historyView, footmanId);
+                }
+                consume(reward);
+            }
+        });
+
+        // the learning step of an event turn, one weight update per friendly footman
+        benchmarks.add(new AgentBenchmarkBase("weightUpdate") {
+            void setup(int armySize) {
+                setup(armySize, true);
+            }
+
+            void run() {
+                BattleFixture fixture = next();
+                agent.learn(fixture.stateView, fixture.historyView, -10);
+                consume(agent.weights[0]);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    private static double sink;
+
+    /**
+     * Keeps the JIT from throwing away results that are never read
+     */
+    private static void consume(double value) {
+        sink += value;
+    }
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private boolean check;
+
+    /**
+     * The most bytes an operation may allocate with check=true. The agent allocates nothing on a turn,
+     * what is left is SEPIA's: the wrappers the history view puts around the logs and the command
+     * feedback, and the iterators over the feedback, about 250 bytes a turn.
+     */
+    private static double allocationBudget(String benchmark) {
+        switch (benchmark) {
+            case "rewardSweep":
+                return 64;
+            case "weightUpdate":
+                return 16;
+            default:
+                return 320;
+        }
+    }
+
+    /**
+     * Result of one measured iteration
+     */
+    private static class Sample {
+        final double opsPerSecond;
+        final double bytesPerOp;
+
+        Sample(double opsPerSecond, double bytesPerOp) {
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private Sample runIteration(Benchmark benchmark, int armySize) {
+        benchmark.setup(armySize);
+
+        long threadId = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long ops = 0;
+
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long now;
+        do {
+            benchmark.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+        return new Sample(ops / ((now - start) / 1e9), (double) bytes / ops);
+    }
+
+    /**
+     * @return false if check is on and a benchmark went over its allocation budget
+     */
+    private boolean run(List<Benchmark> benchmarks, int[] sizes) {
+        System.out.printf("%-22s%6s%16s%12s%16s%14s%n", "Benchmark", "Size", "ops/s", "error", "B/op", "MB/s");
+        List<String> overBudget = new ArrayList<>();
+
+        for (Benchmark benchmark : benchmarks) {
+            for (int size : sizes) {
+                for (int i = 0; i < warmupIterations; i++) {
+                    runIteration(benchmark, size);
+                }
+
+                double[] throughput = new double[iterations];
+                double[] allocation = new double[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    Sample sample = runIteration(benchmark, size);
+                    throughput[i] = sample.opsPerSecond;
+                    allocation[i] = sample.bytesPerOp;
+                }
+
+                double ops = mean(throughput);
+                double bytesPerOp = mean(allocation);
+                System.out.printf("%-22s%6d%16.1f%12.1f%16.1f%14.1f%n", benchmark.name, size, ops,
+                        standardDeviation(throughput, ops), bytesPerOp, ops * bytesPerOp / (1024 * 1024));
+
+                if (check && size <= MAX_CHECKED_SIZE && bytesPerOp > allocationBudget(benchmark.name)) {
+                    overBudget.add(String.format("%s %d: %.1f B/op is over its budget of %.0f", benchmark.name, size,
+                            bytesPerOp, allocationBudget(benchmark.name)));
+                }
+            }
+        }
+
+        if (!check) {
+            return true;
+        }
+        System.out.println();
+        for (String line : overBudget) {
+            System.out.println(line);
+        }
+        System.out.println(overBudget.isEmpty() ? "allocation check passed" : "allocation check failed");
+        return overBudget.isEmpty();
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double standardDeviation(double[] values, double mean) {
+        if (values.length < 2) {
+            return 0;
+        }
+
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    public static void main(String[] args) {
+        AgentBenchmark harness = new AgentBenchmark();
+        int[] sizes = DEFAULT_SIZES;
+        List<String> selected = null;
+
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            String name = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+
+            switch (name) {
+                case "sizes":
+                    String[] parts = value.split(",");
+                    sizes = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        sizes[i] = Integer.parseInt(parts[i].trim());
+                    }
+                    break;
+                case "benchmarks":
+                    selected = Arrays.asList(value.split(","));
+                    break;
+                case "warmup":
+                    harness.warmupIterations = Integer.parseInt(value);
+                    break;
+                case "iterations":
+                    harness.iterations = Integer.parseInt(value);
+                    break;
+                case "millis":
+                    harness.iterationMillis = Long.parseLong(value);
+                    break;
+                case "check":
+                    harness.check = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark option " + name);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (Benchmark benchmark : createBenchmarks()) {
+            if (selected == null || selected.contains(benchmark.name)) {
+                benchmarks.add(benchmark);
+            }
+        }
+
+        boolean passed = harness.run(benchmarks, sizes);
+        if (sink == 42) {
+            System.out.println();
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+}
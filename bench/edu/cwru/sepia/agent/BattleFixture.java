@@ -0,0 +1,117 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic footman battle of any size with the state and history views RLAgent reads. Footmen use the
+ * stats from data/rl_10fv10f.xml. Player 0 stands in a block on the left and player 1 on the right, every
+ * unit is part way through a compound attack on a random enemy, and on event turns some enemies have just
+ * hit a friendly footman. Nobody dies so the agent's rosters stay the same however often it is stepped.
+ */
+public class BattleFixture {
+
+    public final State.StateView stateView;
+    public final History.HistoryView historyView;
+
+    /**
+     * IDs of the footmen of player 0 and player 1
+     */
+    public final List<Integer> myFootmen = new ArrayList<>();
+    public final List<Integer> enemyFootmen = new ArrayList<>();
+
+    /**
+     * @param armySize footmen per side
+     * @param turn     turn number of the state, the logs are on the turn before
+     * @param event    whether friendly footmen were hit on the previous turn
+     * @param seed     seed for health and targets, fixtures with the same seed only differ in turn number
+     */
+    public BattleFixture(int armySize, int turn, boolean event, long seed) {
+        Random random = new Random(seed);
+
+        int rows = (int) Math.ceil(Math.sqrt(armySize));
+        int cols = (armySize + rows - 1) / rows;
+
+        State state = new State();
+        state.setSize(Math.max(25, 2 * cols + 6), Math.max(19, rows));
+        state.addPlayer(0);
+        state.addPlayer(1);
+
+        History history = new History();
+        history.addPlayer(0);
+        history.addPlayer(1);
+
+        List<Unit> mine = addArmy(state, 0, armySize, rows, 0, random);
+        List<Unit> enemies = addArmy(state, 1, armySize, rows, cols + 4, random);
+
+        // the logs belong to the previous turn
+        for (int i = 0; i < turn - 1; i++) {
+            state.incrementTurn();
+        }
+
+        if (turn > 0) {
+            recordAttacks(history, 0, turn - 1, mine, enemies, random);
+            recordAttacks(history, 1, turn - 1, enemies, mine, random);
+
+            if (event) {
+                for (int i = 0; i < enemies.size(); i += 4) {
+                    history.recordDamage(enemies.get(i), mine.get(random.nextInt(mine.size())), 6, state);
+                }
+            }
+
+            state.incrementTurn();
+        }
+
+        for (Unit unit : mine) {
+            myFootmen.add(unit.ID);
+        }
+        for (Unit unit : enemies) {
+            enemyFootmen.add(unit.ID);
+        }
+
+        stateView = state.getView(0);
+        historyView = history.getView(0);
+    }
+
+    private static List<Unit> addArmy(State state, int player, int armySize, int rows, int xOffset, Random random) {
+        UnitTemplate footman = new UnitTemplate(state.nextTemplateID());
+        footman.setName("Footman");
+        footman.setPlayer(player);
+        footman.setBaseHealth(160);
+        footman.setBasicAttack(6);
+        footman.setPiercingAttack(3);
+        footman.setArmor(2);
+        footman.setRange(1);
+        footman.setSightRange(4);
+        footman.setCanMove(true);
+        footman.setDurationMove(1);
+        footman.setDurationAttack(1);
+        state.addTemplate(footman);
+
+        List<Unit> units = new ArrayList<>();
+        for (int i = 0; i < armySize; i++) {
+            Unit unit = footman.produceInstance(state);
+            unit.setHP(60 + random.nextInt(100));
+            state.addUnit(unit, xOffset + i / rows, i % rows);
+            units.add(unit);
+        }
+        return units;
+    }
+
+    private static void recordAttacks(History history, int player, int turn, List<Unit> attackers, List<Unit> targets, Random random) {
+        for (Unit attacker : attackers) {
+            Unit target = targets.get(random.nextInt(targets.size()));
+            Action attack = Action.createCompoundAttack(attacker.ID, target.ID);
+            history.recordCommandFeedback(player, turn, new ActionResult(attack, ActionFeedback.INCOMPLETE));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The actions of one turn, a map from unit ID to action stored in arrays indexed by unit ID. The agent
+ * clears and refills the same map every turn, and once every unit has had an action nothing is allocated
+ * to fill it again: the boxed keys and the entries of a unit are made the first time it gets an action,
+ * and putCompoundAttack keeps the attack of every unit/target pair, since SEPIA's actions are immutable.
+ *
+ * Iterating allocates an iterator like any other map, but that is done by whoever reads the actions.
+ */
+public class ActionMap extends AbstractMap<Integer, Action> {
+
+    private static final int NOT_PUT = -1;
+
+    /**
+     * the action of each unit and where the unit is in units, NOT_PUT if it has none, indexed by unit ID
+     */
+    private Action[] actions = new Action[0];
+    private int[] position = new int[0];
+    private UnitEntry[] entries = new UnitEntry[0];
+
+    /**
+     * the units with an action, in the order they got it
+     */
+    private int[] units = new int[16];
+    private int size;
+
+    /**
+     * attacks[unitId][targetId] is the compound attack of that pair once it has been made
+     */
+    private Action[][] attacks = new Action[0][];
+
+    private final EntrySet entrySet = new EntrySet();
+
+    /**
+     * Gives a unit a compound attack, reusing the action made the last time it attacked that target.
+     * @param unitId   the attacking unit
+     * @param targetId the unit to attack
+     */
+    public void putCompoundAttack(int unitId, int targetId) {
+        if (unitId >= attacks.length) {
+            attacks = Arrays.copyOf(attacks, Math.max(unitId + 1, attacks.length * 2));
+        }
+        Action[] unitAttacks = attacks[unitId];
+        if (unitAttacks == null || targetId >= unitAttacks.length) {
+            int length = unitAttacks == null ? targetId + 1 : Math.max(targetId + 1, unitAttacks.length * 2);
+            unitAttacks = unitAttacks == null ? new Action[length] : Arrays.copyOf(unitAttacks, length);
+            attacks[unitId] = unitAttacks;
+        }
+        if (unitAttacks[targetId] == null) {
+            unitAttacks[targetId] = Action.createCompoundAttack(unitId, targetId);
+        }
+
+        put(unitId, unitAttacks[targetId]);
+    }
+
+    /**
+     * Gives a unit an action, replacing the one it had.
+     * @param unitId the unit
+     * @param action the action, not null
+     * @return the action it had or null
+     */
+    public Action put(int unitId, Action action) {
+        if (action == null) {
+            throw new NullPointerException("A unit's action cannot be null");
+        }
+
+        if (unitId >= actions.length) {
+            int oldLength = actions.length;
+            int length = Math.max(unitId + 1, oldLength * 2);
+            actions = Arrays.copyOf(actions, length);
+            position = Arrays.copyOf(position, length);
+            entries = Arrays.copyOf(entries, length);
+            Arrays.fill(position, oldLength, length, NOT_PUT);
+        }
+
+        Action old = actions[unitId];
+        actions[unitId] = action;
+        if (position[unitId] == NOT_PUT) {
+            if (size == units.length) {
+                units = Arrays.copyOf(units, size * 2);
+            }
+            if (entries[unitId] == null) {
+                entries[unitId] = new UnitEntry(unitId);
+            }
+            position[unitId] = size;
+            units[size++] = unitId;
+        }
+        return old;
+    }
+
+    @Override
+    public Action put(Integer unitId, Action action) {
+        return put(unitId.intValue(), action);
+    }
+
+    @Override
+    public Action get(Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        int unitId = (Integer) key;
+        return unitId >= 0 && unitId < actions.length ? actions[unitId] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Action remove(Object key) {
+        Action old = get(key);
+        if (old != null) {
+            removeUnit((Integer) key);
+        }
+        return old;
+    }
+
+    /**
+     * Removes the action of a unit, moving the last unit into its place.
+     */
+    private void removeUnit(int unitId) {
+        int index = position[unitId];
+        int last = units[--size];
+        units[index] = last;
+        position[last] = index;
+
+        actions[unitId] = null;
+        position[unitId] = NOT_PUT;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            actions[units[i]] = null;
+            position[units[i]] = NOT_PUT;
+        }
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<Integer, Action>> entrySet() {
+        return entrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<Integer, Action>> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            ActionMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Entry<Integer, Action>> iterator() {
+            return new Iterator<Entry<Integer, Action>>() {
+                private int next;
+                private int current = NOT_PUT;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public Entry<Integer, Action> next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    current = units[next++];
+                    return entries[current];
+                }
+
+                @Override
+                public void remove() {
+                    if (current == NOT_PUT) {
+                        throw new IllegalStateException();
+                    }
+                    // the last unit moves into the removed one's place, which is visited next
+                    removeUnit(current);
+                    current = NOT_PUT;
+                    next--;
+                }
+            };
+        }
+    }
+
+    /**
+     * The entry of one unit, made once and always showing its current action
+     */
+    private class UnitEntry implements Map.Entry<Integer, Action> {
+        private final Integer unitId;
+
+        UnitEntry(int unitId) {
+            this.unitId = unitId;
+        }
+
+        @Override
+        public Integer getKey() {
+            return unitId;
+        }
+
+        @Override
+        public Action getValue() {
+            return actions[unitId];
+        }
+
+        @Override
+        public Action setValue(Action action) {
+            return put(unitId.intValue(), action);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return unitId.equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return unitId.hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return unitId + "=" + getValue();
+        }
+    }
+}
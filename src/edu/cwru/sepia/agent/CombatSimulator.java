@@ -0,0 +1,678 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import edu.cwru.sepia.util.Direction;
+
+import javax.xml.bind.JAXBException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A stripped down stand-in for SEPIA on the footman only maps, data/rl_5fv5f.xml and data/rl_10fv10f.xml,
+ * so an agent can be pre-trained at a much higher episode rate and then fine-tuned in SEPIA.
+ *
+ * The agent still gets a real State and History, so it sees the same views as in SEPIA: unit positions
+ * and health, damage and death logs and command feedback. The game itself runs on arrays, one slot per
+ * unit, and is copied into the state as it changes. It plays like SEPIA's SimpleModel:
+ *  - a compound attack is planned on the turn it is carried out first: a shortest path around the other
+ *    units to a square in range of where the target is then, followed one square a turn, and a hit on
+ *    the target at the end of it that completes the attack, so the agent has to attack again
+ *  - a step that fails, because there is no path, the next square has been taken since or the target
+ *    has moved out of range, is reported as FAILED but the unit plans again from where it is and keeps
+ *    going, as SimpleModel never drops a failed attack from its queue; only an attack on a dead target
+ *    ends on FAILED
+ *  - units act one after another in order of their IDs, damage is SimpleModel's formula and units with
+ *    no health left are removed at the end of the turn
+ * Paths are found with an A* search of our own instead of SEPIA's, so they are as short but may take
+ * other squares.
+ *
+ * The opponent is a script that plays like combatAgent. A footman without orders attacks the closest
+ * enemy it can see with probability AGGRO_NEAREST, and otherwise a random enemy. It gives its orders
+ * again every turn, so its units go to where their targets are now, and forgets them when the attack
+ * completes or fails, so it picks again after every hit.
+ *
+ * Every episode starts from a fresh State created from the map, but the simulator's own arrays are
+ * reused, so a turn only allocates the ActionResults it reports, what History allocates to log them and
+ * what the agent allocates.
+ *
+ * The main method prints a fidelity report: policies trained in each engine are played in both, to see
+ * how far the simulator's win rates are from SEPIA's and how much faster it is.
+ */
+public class CombatSimulator {
+
+    /**
+     * Same as the TimeLimit of SepiaEnvironment.createModelConfiguration
+     */
+    public static final int MAX_TURNS = 100000;
+
+    /**
+     * How often the scripted opponent attacks the closest enemy rather than a random one, as combatAgent
+     */
+    public static final double AGGRO_NEAREST = .75;
+
+    private static final int NO_UNIT = -1;
+
+    private final StateCreator map;
+    private final SplitRandom random;
+
+    private State state;
+    private History history;
+    private int turn;
+
+    /**
+     * One slot per unit on the map in order of unit ID, the same slots every episode
+     */
+    private final int numUnits;
+    private final int[] ids;
+    private final int[] slotOfId;
+    private final Unit[] units;
+    private final int[] players;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] hps;
+    private final boolean[] alive;
+
+    /**
+     * template values of each unit
+     */
+    private final int[] basicAttack;
+    private final int[] piercingAttack;
+    private final int[] armor;
+    private final int[] range;
+    private final int[] sight;
+
+    /**
+     * The current attack of each unit: the slot of its target or NO_UNIT, whether it has planned its way
+     * there, and the action it was given and the feedback recorded while it is under way
+     */
+    private final int[] targetOf;
+    private final boolean[] planned;
+    private final Action[] orders;
+    private final ActionResult[] underWay;
+
+    /**
+     * The orders the scripted opponent remembers for its units, as combatAgent's unitOrders
+     */
+    private final int[] scriptTarget;
+    private final Action[] scriptOrders;
+
+    /**
+     * slot + 1 of the unit on each square, 0 if it is free, indexed x * yExtent + y
+     */
+    private final int xExtent;
+    private final int yExtent;
+    private final int[] occupant;
+
+    /**
+     * The planned path of each unit, the squares it moves to in order: those of slot i start at
+     * i * occupant.length, pathLength of them, and the next one is pathStep. pathTarget is the square
+     * the target was on when it was planned.
+     */
+    private final int[] paths;
+    private final int[] pathLength;
+    private final int[] pathStep;
+    private final int[] pathTarget;
+
+    /**
+     * Search buffers: how many steps each square is from a square in range of the target, and the search
+     * that last reached and last closed each one, so they never need clearing. The open squares are kept
+     * in buckets by their steps plus their distance to the unit, each bucket a linked list of entries.
+     */
+    private final int[] stepsLeft;
+    private final int[] reachedBy;
+    private final int[] closedBy;
+    private int searches;
+    private final int[] bucketHead;
+    private final int[] entrySquare;
+    private final int[] entryNext;
+    private int numEntries;
+    private int maxBucket;
+
+    private int agentPlayer;
+    private int agentAlive;
+    private int opponentAlive;
+
+    /**
+     * @param mapPath path to the map xml, e.g. data/rl_5fv5f.xml
+     * @param random  the generator for the damage rolls and the opponent
+     * @throws JAXBException if the file is not a valid map
+     */
+    public CombatSimulator(String mapPath, SplitRandom random) throws JAXBException {
+        this(SepiaEnvironment.loadMap(mapPath), random);
+    }
+
+    /**
+     * @param map    an already parsed map, see SepiaEnvironment.loadMap
+     * @param random the generator for the damage rolls and the opponent
+     */
+    public CombatSimulator(StateCreator map, SplitRandom random) {
+        this.map = map;
+        this.random = random;
+
+        State initial = map.createState();
+        numUnits = initial.getUnits().size();
+        ids = new int[numUnits];
+        int maxId = 0;
+        int slot = 0;
+        for (Integer unitId : initial.getUnits().keySet()) {
+            ids[slot++] = unitId;
+            maxId = Math.max(maxId, unitId);
+        }
+        Arrays.sort(ids);
+
+        slotOfId = new int[maxId + 1];
+        Arrays.fill(slotOfId, NO_UNIT);
+        for (int i = 0; i < numUnits; i++) {
+            slotOfId[ids[i]] = i;
+        }
+
+        units = new Unit[numUnits];
+        players = new int[numUnits];
+        xs = new int[numUnits];
+        ys = new int[numUnits];
+        hps = new int[numUnits];
+        alive = new boolean[numUnits];
+        basicAttack = new int[numUnits];
+        piercingAttack = new int[numUnits];
+        armor = new int[numUnits];
+        range = new int[numUnits];
+        sight = new int[numUnits];
+        targetOf = new int[numUnits];
+        planned = new boolean[numUnits];
+        orders = new Action[numUnits];
+        underWay = new ActionResult[numUnits];
+        scriptTarget = new int[numUnits];
+        scriptOrders = new Action[numUnits];
+
+        xExtent = initial.getXExtent();
+        yExtent = initial.getYExtent();
+        occupant = new int[xExtent * yExtent];
+
+        paths = new int[numUnits * occupant.length];
+        pathLength = new int[numUnits];
+        pathStep = new int[numUnits];
+        pathTarget = new int[numUnits];
+        stepsLeft = new int[occupant.length];
+        reachedBy = new int[occupant.length];
+        closedBy = new int[occupant.length];
+        bucketHead = new int[occupant.length + xExtent + yExtent];
+        Arrays.fill(bucketHead, NO_UNIT);
+        entrySquare = new int[9 * occupant.length];
+        entryNext = new int[9 * occupant.length];
+    }
+
+    /**
+     * @return the state of the current or last episode
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Plays one episode from the initial map until one side has no units left.
+     * @param agent the agent, it plays its own player number against the scripted opponent
+     */
+    public void runEpisode(Agent agent) {
+        reset(agent.getPlayerNumber());
+
+        Map<Integer, Action> actions = agent.initialStep(state.getView(agentPlayer), history.getView(agentPlayer));
+        while (true) {
+            giveOrders(actions);
+            aggro();
+            executeStep();
+
+            if (agentAlive == 0 || opponentAlive == 0 || turn >= MAX_TURNS) {
+                break;
+            }
+            actions = agent.middleStep(state.getView(agentPlayer), history.getView(agentPlayer));
+        }
+
+        agent.terminalStep(state.getView(agentPlayer), history.getView(agentPlayer));
+    }
+
+    /**
+     * Starts an episode from a fresh copy of the map.
+     */
+    private void reset(int agentPlayer) {
+        this.agentPlayer = agentPlayer;
+        state = map.createState();
+        history = new History();
+        for (Integer player : state.getPlayers()) {
+            history.addPlayer(player);
+        }
+        turn = state.getTurnNumber();
+
+        Arrays.fill(occupant, 0);
+        agentAlive = 0;
+        opponentAlive = 0;
+        for (int i = 0; i < numUnits; i++) {
+            Unit unit = state.getUnit(ids[i]);
+            UnitTemplate template = unit.getTemplate();
+
+            units[i] = unit;
+            players[i] = unit.getPlayer();
+            xs[i] = unit.getxPosition();
+            ys[i] = unit.getyPosition();
+            hps[i] = unit.getCurrentHealth();
+            alive[i] = true;
+            basicAttack[i] = template.getBasicAttack();
+            piercingAttack[i] = template.getPiercingAttack();
+            armor[i] = template.getArmor();
+            range[i] = template.getRange();
+            sight[i] = template.getSightRange();
+            targetOf[i] = NO_UNIT;
+            orders[i] = null;
+            underWay[i] = null;
+            scriptTarget[i] = NO_UNIT;
+            scriptOrders[i] = null;
+
+            occupant[xs[i] * yExtent + ys[i]] = i + 1;
+            if (players[i] == agentPlayer) {
+                agentAlive++;
+            } else {
+                opponentAlive++;
+            }
+        }
+    }
+
+    /**
+     * Gives the agent's units the attacks it asked for. Like SimpleModel a new action replaces the old
+     * one and actions for units that are not the agent's are ignored.
+     */
+    private void giveOrders(Map<Integer, Action> actions) {
+        for (Action action : actions.values()) {
+            int unitId = action.getUnitId();
+            int slot = unitId >= 0 && unitId < slotOfId.length ? slotOfId[unitId] : NO_UNIT;
+            if (slot == NO_UNIT || !alive[slot] || players[slot] != agentPlayer) {
+                continue;
+            }
+            if (action.getType() != ActionType.COMPOUNDATTACK) {
+                throw new IllegalArgumentException("The combat simulator only plays compound attacks, got " + action);
+            }
+
+            int targetId = ((TargetedAction) action).getTargetId();
+            int target = targetId >= 0 && targetId < slotOfId.length ? slotOfId[targetId] : NO_UNIT;
+            order(slot, target, action);
+            if (target == NO_UNIT || !alive[target]) {
+                finish(slot, ActionFeedback.FAILED);
+            }
+        }
+    }
+
+    /**
+     * The scripted opponent: every unit without orders that can see an enemy attacks the closest one,
+     * or sometimes a random one. combatAgent gives its units their orders again every turn, so they
+     * plan their way to where their target is now every turn.
+     */
+    private void aggro() {
+        for (int i = 0; i < numUnits; i++) {
+            if (!alive[i] || players[i] == agentPlayer) {
+                continue;
+            }
+            if (scriptTarget[i] != NO_UNIT) {
+                if (!planned[i] || !isPathClear(i)) {
+                    // otherwise planning again would find the same path
+                    order(i, scriptTarget[i], scriptOrders[i]);
+                }
+                continue;
+            }
+
+            int nearest = NO_UNIT;
+            int nearestDistance = Integer.MAX_VALUE;
+            for (int j = 0; j < numUnits; j++) {
+                if (alive[j] && players[j] == agentPlayer) {
+                    int distance = distance(i, j);
+                    if (distance < nearestDistance) {
+                        nearest = j;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+            if (nearest == NO_UNIT || nearestDistance >= sight[i]) {
+                continue;
+            }
+
+            int target = random.nextDouble() < AGGRO_NEAREST ? nearest : randomAgentUnit();
+            scriptTarget[i] = target;
+            scriptOrders[i] = Action.createCompoundAttack(ids[i], ids[target]);
+            order(i, target, scriptOrders[i]);
+        }
+    }
+
+    private int randomAgentUnit() {
+        int pick = random.nextInt(agentAlive);
+        for (int j = 0; j < numUnits; j++) {
+            if (alive[j] && players[j] == agentPlayer && pick-- == 0) {
+                return j;
+            }
+        }
+        throw new IllegalStateException("The agent has fewer than " + agentAlive + " units");
+    }
+
+    /**
+     * Plays one turn, then removes the dead and moves on to the next turn.
+     */
+    private void executeStep() {
+        // SimpleModel plans new actions as they are given, before anyone moves
+        for (int i = 0; i < numUnits; i++) {
+            if (alive[i] && targetOf[i] != NO_UNIT && !planned[i]) {
+                planned[i] = plan(i, targetOf[i]);
+            }
+        }
+
+        for (int i = 0; i < numUnits; i++) {
+            if (!alive[i] || targetOf[i] == NO_UNIT) {
+                continue;
+            }
+
+            int target = targetOf[i];
+            if (!alive[target]) {
+                finish(i, ActionFeedback.FAILED);
+            } else if (!planned[i]) {
+                fail(i);
+            } else if (pathStep[i] == pathLength[i]) {
+                if (distance(i, target) <= range[i]) {
+                    attack(i, target);
+                    finish(i, ActionFeedback.COMPLETED);
+                } else {
+                    fail(i);
+                }
+            } else if (move(i, paths[i * occupant.length + pathStep[i]])) {
+                pathStep[i]++;
+                history.recordCommandFeedback(players[i], turn, underWay[i]);
+            } else {
+                fail(i);
+            }
+        }
+
+        // units act until the end of the turn they are killed in, as in SimpleModel
+        for (int i = 0; i < numUnits; i++) {
+            if (!alive[i] || hps[i] > 0) {
+                continue;
+            }
+
+            history.recordDeath(units[i], state);
+            state.removeUnit(ids[i]);
+            alive[i] = false;
+            targetOf[i] = NO_UNIT;
+            occupant[xs[i] * yExtent + ys[i]] = 0;
+            if (players[i] == agentPlayer) {
+                agentAlive--;
+            } else {
+                opponentAlive--;
+            }
+        }
+
+        state.incrementTurn();
+        turn = state.getTurnNumber();
+    }
+
+    private void order(int slot, int target, Action action) {
+        if (orders[slot] != action) {
+            orders[slot] = action;
+            underWay[slot] = new ActionResult(action, ActionFeedback.INCOMPLETE);
+        }
+        targetOf[slot] = target;
+        planned[slot] = false;
+    }
+
+    /**
+     * Whether a unit's target is still where it was when the path was planned and the next square of the
+     * path is still free.
+     */
+    private boolean isPathClear(int slot) {
+        int target = targetOf[slot];
+        if (pathTarget[slot] != xs[target] * yExtent + ys[target]) {
+            return false;
+        }
+        return pathStep[slot] == pathLength[slot] || occupant[paths[slot * occupant.length + pathStep[slot]]] == 0;
+    }
+
+    /**
+     * Plans a unit's path to the closest square in range of its target, going around the other units.
+     * The search is A* run backwards from the squares in range, and the path then takes the step closest
+     * to the target in a straight line whenever several are as short, which keeps it straight.
+     * @return false if there is no such path
+     */
+    private boolean plan(int slot, int target) {
+        int start = xs[slot] * yExtent + ys[slot];
+        int reach = range[slot];
+        searches++;
+        numEntries = 0;
+        maxBucket = 0;
+        int minBucket = Integer.MAX_VALUE;
+        for (int x = Math.max(0, xs[target] - reach); x <= Math.min(xExtent - 1, xs[target] + reach); x++) {
+            for (int y = Math.max(0, ys[target] - reach); y <= Math.min(yExtent - 1, ys[target] + reach); y++) {
+                int square = x * yExtent + y;
+                if (occupant[square] == 0 || square == start) {
+                    reachedBy[square] = searches;
+                    stepsLeft[square] = 0;
+                    int bucket = chebyshev(x, y, xs[slot], ys[slot]);
+                    open(square, bucket);
+                    minBucket = Math.min(minBucket, bucket);
+                }
+            }
+        }
+
+        boolean found = false;
+        int bucket = minBucket;
+        while (!found && bucket <= maxBucket) {
+            int entry = bucketHead[bucket];
+            if (entry == NO_UNIT) {
+                bucket++;
+                continue;
+            }
+            bucketHead[bucket] = entryNext[entry];
+
+            int square = entrySquare[entry];
+            int x = square / yExtent;
+            int y = square % yExtent;
+            if (closedBy[square] == searches || stepsLeft[square] + chebyshev(x, y, xs[slot], ys[slot]) != bucket) {
+                // reached again with fewer steps since it was opened
+                continue;
+            }
+            closedBy[square] = searches;
+            if (square == start) {
+                found = true;
+                continue;
+            }
+
+            int steps = stepsLeft[square] + 1;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int newX = x + dx;
+                    int newY = y + dy;
+                    if (newX < 0 || newX >= xExtent || newY < 0 || newY >= yExtent) {
+                        continue;
+                    }
+                    int next = newX * yExtent + newY;
+                    if ((occupant[next] == 0 || next == start)
+                            && (reachedBy[next] != searches || steps < stepsLeft[next])) {
+                        reachedBy[next] = searches;
+                        stepsLeft[next] = steps;
+                        open(next, steps + chebyshev(newX, newY, xs[slot], ys[slot]));
+                    }
+                }
+            }
+        }
+        for (; bucket <= maxBucket; bucket++) {
+            bucketHead[bucket] = NO_UNIT;
+        }
+        if (!found) {
+            return false;
+        }
+
+        // every step count recorded came from a closed square, so the path can walk down them
+        int offset = slot * occupant.length;
+        int length = stepsLeft[start];
+        int x = xs[slot];
+        int y = ys[slot];
+        for (int step = 0; step < length; step++) {
+            int best = NO_UNIT;
+            int bestSquared = Integer.MAX_VALUE;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int newX = x + dx;
+                    int newY = y + dy;
+                    if (newX < 0 || newX >= xExtent || newY < 0 || newY >= yExtent) {
+                        continue;
+                    }
+                    int next = newX * yExtent + newY;
+                    int squared = (newX - xs[target]) * (newX - xs[target]) + (newY - ys[target]) * (newY - ys[target]);
+                    if (reachedBy[next] == searches && stepsLeft[next] == length - step - 1 && squared < bestSquared) {
+                        best = next;
+                        bestSquared = squared;
+                    }
+                }
+            }
+            paths[offset + step] = best;
+            x = best / yExtent;
+            y = best % yExtent;
+        }
+        pathLength[slot] = length;
+        pathStep[slot] = 0;
+        pathTarget[slot] = xs[target] * yExtent + ys[target];
+        return true;
+    }
+
+    private void open(int square, int bucket) {
+        entrySquare[numEntries] = square;
+        entryNext[numEntries] = bucketHead[bucket];
+        bucketHead[bucket] = numEntries++;
+        maxBucket = Math.max(maxBucket, bucket);
+    }
+
+    /**
+     * Ends a unit's attack and records how it ended.
+     */
+    private void finish(int slot, ActionFeedback feedback) {
+        history.recordCommandFeedback(players[slot], turn, new ActionResult(orders[slot], feedback));
+        targetOf[slot] = NO_UNIT;
+        orders[slot] = null;
+        underWay[slot] = null;
+        scriptTarget[slot] = NO_UNIT;
+    }
+
+    /**
+     * Records a failed step and plans the attack again from where the unit is now, to go on with next
+     * turn. The scripted opponent forgets the order, like combatAgent does on any feedback but
+     * INCOMPLETE.
+     */
+    private void fail(int slot) {
+        history.recordCommandFeedback(players[slot], turn, new ActionResult(orders[slot], ActionFeedback.FAILED));
+        planned[slot] = plan(slot, targetOf[slot]);
+        scriptTarget[slot] = NO_UNIT;
+    }
+
+    /**
+     * Hits a unit with SimpleModel's damage: the attack less the armor, at least 1, plus the piercing
+     * attack, plus or minus up to about half of it.
+     */
+    private void attack(int attacker, int defender) {
+        int base = Math.max(1, basicAttack[attacker] - armor[defender]) + piercingAttack[attacker];
+        int dealt = base - random.nextInt() % ((base + 2) / 2);
+
+        hps[defender] = Math.max(0, hps[defender] - dealt);
+        history.recordDamage(units[attacker], units[defender], dealt, state);
+        units[defender].setHP(hps[defender]);
+        units[defender].deprecateOldView();
+    }
+
+    /**
+     * Moves a unit to a square next to it.
+     * @return false if the square is taken
+     */
+    private boolean move(int slot, int square) {
+        if (occupant[square] != 0) {
+            return false;
+        }
+
+        int x = square / yExtent;
+        int y = square % yExtent;
+        occupant[xs[slot] * yExtent + ys[slot]] = 0;
+        occupant[square] = slot + 1;
+        state.moveUnit(units[slot], Direction.getDirection(x - xs[slot], y - ys[slot]));
+        units[slot].deprecateOldView();
+        xs[slot] = x;
+        ys[slot] = y;
+        return true;
+    }
+
+    private int distance(int a, int b) {
+        return chebyshev(xs[a], ys[a], xs[b], ys[b]);
+    }
+
+    private static int chebyshev(int x1, int y1, int x2, int y2) {
+        return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
+    }
+
+    /**
+     * The fidelity report. Trains a policy in each engine, plays both policies with frozen weights in
+     * both engines and prints the win rates and episode rates.
+     *
+     * Usage: CombatSimulator map trainingEpisodes evaluationEpisodes [name=value ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: CombatSimulator map trainingEpisodes evaluationEpisodes [name=value ...]");
+            System.exit(1);
+        }
+
+        Hyperparameters hyperparameters = Hyperparameters.defaults();
+        for (int i = 3; i < args.length; i++) {
+            hyperparameters = hyperparameters.withArgument(args[i]);
+        }
+        int trainingEpisodes = Integer.parseInt(args[1]);
+        int evaluationEpisodes = Integer.parseInt(args[2]);
+        Hyperparameters frozen = hyperparameters.withLearningMode(Hyperparameters.LearningMode.INFERENCE,
+                hyperparameters.lspiIterations);
+
+        RLTrainer trainer = new RLTrainer(args[0]);
+        System.out.println(hyperparameters);
+        System.out.printf("%-10s %-10s %9s %12s%n", "trained", "played", "win rate", "episodes/s");
+
+        long start = System.nanoTime();
+        TrainingResult simulated = trainer.pretrain(trainingEpisodes, hyperparameters, null);
+        printRow("simulator", "simulator", simulated, start);
+        start = System.nanoTime();
+        TrainingResult real = trainer.train(trainingEpisodes, hyperparameters, null);
+        printRow("sepia", "sepia", real, start);
+
+        double[][] rates = new double[2][2];
+        String[] engines = {"simulator", "sepia"};
+        double[][] weights = {simulated.finalWeights, real.finalWeights};
+        for (int trained = 0; trained < 2; trained++) {
+            for (int played = 0; played < 2; played++) {
+                start = System.nanoTime();
+                TrainingResult result = played == 0
+                        ? trainer.pretrain(evaluationEpisodes, frozen, weights[trained])
+                        : trainer.train(evaluationEpisodes, frozen, weights[trained]);
+                printRow(engines[trained], engines[played], result, start);
+                rates[trained][played] = result.getWinRate();
+            }
+        }
+
+        for (int trained = 0; trained < 2; trained++) {
+            double gap = rates[trained][0] - rates[trained][1];
+            double error = Math.sqrt((rates[trained][0] * (1 - rates[trained][0])
+                    + rates[trained][1] * (1 - rates[trained][1])) / evaluationEpisodes);
+            System.out.printf("%s policy: simulator wins %+.1f%% more than sepia (standard error %.1f%%)%n",
+                    engines[trained], gap * 100, error * 100);
+        }
+    }
+
+    private static void printRow(String trained, String played, TrainingResult result, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-10s %-10s %8.1f%% %12.0f%n", trained, played, result.getWinRate() * 100,
+                result.episodes / seconds);
+    }
+}
@@ -0,0 +1,176 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Who is attacking whom on the current turn. The index is kept up to date from what changed on the last
+ * turn (new targets, completed and failed attacks, deaths) instead of being rebuilt, so the engagement
+ * features are array lookups and the upkeep only writes what changed.
+ *
+ * A failed attack still counts on the turn it is reported, like every attack that is not completed, and
+ * is dropped at the next update unless the unit attacks again. The attack of a unit that died is dropped
+ * the same way, because SEPIA still reports it on the turn the unit died.
+ *
+ * All tables are indexed directly by unit ID, which SEPIA hands out densely from 0.
+ */
+public class EngagementIndex {
+
+    public static final int NO_TARGET = -1;
+
+    private int[] attackerCount = new int[0];
+    private int[] targetOf = new int[0];
+
+    /**
+     * units with a target, and where each one is in the list so it can be removed in constant time
+     */
+    private int[] engaged = new int[16];
+    private int[] positionOf = new int[0];
+    private int numEngaged = 0;
+
+    /**
+     * units whose attack failed or who died on the last turn
+     */
+    private int[] pending = new int[16];
+    private int numPending = 0;
+
+    /**
+     * Removes every engagement.
+     */
+    public void clear() {
+        for (int i = 0; i < numEngaged; i++) {
+            int unitId = engaged[i];
+            attackerCount[targetOf[unitId]] = 0;
+            targetOf[unitId] = NO_TARGET;
+        }
+        numEngaged = 0;
+        numPending = 0;
+    }
+
+    /**
+     * Records that a unit is attacking a target, replacing what it attacked before.
+     * @param unitId   the attacking unit
+     * @param targetId the unit being attacked
+     */
+    public void assign(int unitId, int targetId) {
+        ensureCapacity(Math.max(unitId, targetId) + 1);
+
+        int oldTarget = targetOf[unitId];
+        if (oldTarget == targetId) {
+            return;
+        }
+
+        if (oldTarget != NO_TARGET) {
+            attackerCount[oldTarget]--;
+        } else {
+            if (numEngaged == engaged.length) {
+                engaged = Arrays.copyOf(engaged, engaged.length * 2);
+            }
+            positionOf[unitId] = numEngaged;
+            engaged[numEngaged++] = unitId;
+        }
+
+        targetOf[unitId] = targetId;
+        attackerCount[targetId]++;
+    }
+
+    /**
+     * Records that a unit stopped attacking, because it finished, died or was given another command.
+     * @param unitId the unit
+     */
+    public void release(int unitId) {
+        if (unitId >= targetOf.length || targetOf[unitId] == NO_TARGET) {
+            return;
+        }
+
+        attackerCount[targetOf[unitId]]--;
+        targetOf[unitId] = NO_TARGET;
+
+        int position = positionOf[unitId];
+        int last = engaged[--numEngaged];
+        engaged[position] = last;
+        positionOf[last] = position;
+    }
+
+    /**
+     * Marks the attack of a unit to be released at the next call to releasePending.
+     * @param unitId the unit whose attack failed or who died
+     */
+    public void releaseNextUpdate(int unitId) {
+        if (numPending == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[numPending++] = unitId;
+    }
+
+    /**
+     * Releases every unit marked since the last call. Call before applying a new turn.
+     */
+    public void releasePending() {
+        for (int i = 0; i < numPending; i++) {
+            release(pending[i]);
+        }
+        numPending = 0;
+    }
+
+    /**
+     * @param targetId the unit being attacked
+     * @return the number of units attacking the target
+     */
+    public int getAttackerCount(int targetId) {
+        return targetId < attackerCount.length ? attackerCount[targetId] : 0;
+    }
+
+    /**
+     * @param unitId the attacking unit
+     * @return the ID of the unit it is attacking or NO_TARGET
+     */
+    public int getTarget(int unitId) {
+        return unitId < targetOf.length ? targetOf[unitId] : NO_TARGET;
+    }
+
+    public int size() {
+        return numEngaged;
+    }
+
+    /**
+     * Compares this index with one built from scratch.
+     * @param expected the index built from the full command feedback
+     * @throws IllegalStateException describing the first difference
+     */
+    public void verify(EngagementIndex expected) {
+        for (int i = 0; i < numEngaged; i++) {
+            int unitId = engaged[i];
+            if (expected.getTarget(unitId) != targetOf[unitId]) {
+                throw new IllegalStateException("Unit " + unitId + " should be attacking " + expected.getTarget(unitId)
+                        + " but the engagement index has " + targetOf[unitId]);
+            }
+        }
+
+        for (int i = 0; i < expected.numEngaged; i++) {
+            int unitId = expected.engaged[i];
+            int target = expected.getTarget(unitId);
+            if (getTarget(unitId) != target) {
+                throw new IllegalStateException("Unit " + unitId + " should be attacking " + target
+                        + " but the engagement index has " + getTarget(unitId));
+            }
+            if (getAttackerCount(target) != expected.getAttackerCount(target)) {
+                throw new IllegalStateException("Unit " + target + " should have " + expected.getAttackerCount(target)
+                        + " attackers but the engagement index has " + getAttackerCount(target));
+            }
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= targetOf.length) {
+            return;
+        }
+
+        int newSize = Math.max(size, targetOf.length * 2);
+        int oldSize = targetOf.length;
+
+        attackerCount = Arrays.copyOf(attackerCount, newSize);
+        positionOf = Arrays.copyOf(positionOf, newSize);
+        targetOf = Arrays.copyOf(targetOf, newSize);
+        Arrays.fill(targetOf, oldSize, newSize, NO_TARGET);
+    }
+}
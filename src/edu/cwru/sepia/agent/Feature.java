@@ -0,0 +1,31 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One feature of the linear Q-function, computed for a footman/enemy pair. A feature declares the
+ * per-turn aggregates it reads, so the agent only computes the aggregates of the features in use.
+ * See FeatureRegistry.
+ */
+public interface Feature {
+
+    /**
+     * @return the name printed next to the feature's weight
+     */
+    String getName();
+
+    /**
+     * @return the aggregates the feature reads, FeatureRegistry.ENGAGEMENTS, NEAREST_ENEMIES and
+     *         HEALTH_RANK or'ed together, or 0 for none
+     */
+    int getAggregates();
+
+    /**
+     * Computes the feature of one footman against several enemies, so a turn makes one call per footman
+     * and feature rather than one per pair.
+     * @param context     the units and aggregates of the current turn
+     * @param attackerId  Your footman. The one doing the attacking.
+     * @param defenderIds the enemy footmen you are considering attacking
+     * @param count       the number of enemies in defenderIds
+     * @param values      filled with the value of the feature for each enemy, in the same order
+     */
+    void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values);
+}
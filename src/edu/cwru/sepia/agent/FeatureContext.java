@@ -0,0 +1,58 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * What a Feature can read about the current turn. The rosters are always up to date; the engagement
+ * index and the tactical snapshot are only up to date for the aggregates some active feature declared.
+ */
+public class FeatureContext {
+
+    private final UnitRoster myFootmen;
+    private final UnitRoster enemyFootmen;
+    private final EngagementIndex engagements;
+    private final TacticalSnapshot tactics;
+
+    public FeatureContext(UnitRoster myFootmen, UnitRoster enemyFootmen, EngagementIndex engagements,
+                          TacticalSnapshot tactics) {
+        this.myFootmen = myFootmen;
+        this.enemyFootmen = enemyFootmen;
+        this.engagements = engagements;
+        this.tactics = tactics;
+    }
+
+    public UnitRoster getMyFootmen() {
+        return myFootmen;
+    }
+
+    public UnitRoster getEnemyFootmen() {
+        return enemyFootmen;
+    }
+
+    /**
+     * @return who is attacking whom, see FeatureRegistry.ENGAGEMENTS
+     */
+    public EngagementIndex getEngagements() {
+        return engagements;
+    }
+
+    /**
+     * @return the closest and weakest enemies, see FeatureRegistry.NEAREST_ENEMIES and HEALTH_RANK
+     */
+    public TacticalSnapshot getTactics() {
+        return tactics;
+    }
+
+    /**
+     * Returns the health of a living unit on either side from this turn's snapshot
+     * @param unitId the unit
+     * @return the health of the unit or 0 if it is dead
+     */
+    public int getHealth(int unitId) {
+        int slot = myFootmen.slotOf(unitId);
+        if (slot != UnitRoster.NO_SLOT) {
+            return myFootmen.getHP(slot);
+        }
+
+        slot = enemyFootmen.slotOf(unitId);
+        return slot != UnitRoster.NO_SLOT ? enemyFootmen.getHP(slot) : 0;
+    }
+}
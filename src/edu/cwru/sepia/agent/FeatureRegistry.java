@@ -0,0 +1,321 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * The features of the linear Q-function, in weight order. Each Feature declares the per-turn
+ * aggregates it reads, and the registry keeps the set of active features and the aggregates they need,
+ * so the agent only computes those aggregates each turn. Inactive features are left at 0.
+ *
+ * Features are computed a footman at a time against every enemy, one call per footman and feature, so
+ * the loop over enemies inside a feature is compiled for that feature alone.
+ *
+ * Every feature is active while learning. When playing trained weights, activate(weights, threshold)
+ * drops the features whose weight is too small to matter, and the aggregates only they needed.
+ *
+ * A registry keeps its active set, so every agent needs its own.
+ */
+public class FeatureRegistry {
+
+    /**
+     * Aggregates a feature can declare: who is attacking whom, the closest enemy of every footman and
+     * the health ranking of the enemies, which for now is only the enemy with the least health
+     */
+    public static final int ENGAGEMENTS = 1;
+    public static final int NEAREST_ENEMIES = 2;
+    public static final int HEALTH_RANK = 4;
+
+    public static final Feature CONSTANT = new Feature() {
+        @Override
+        public String getName() {
+            return "constant";
+        }
+
+        @Override
+        public int getAggregates() {
+            return 0;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            Arrays.fill(values, 0, count, .1);
+        }
+    };
+
+    /**
+     * how many other footmen are attacking e?
+     */
+    public static final Feature FOOTMEN_ATTACKING = new Feature() {
+        @Override
+        public String getName() {
+            return "footmen attacking";
+        }
+
+        @Override
+        public int getAggregates() {
+            return ENGAGEMENTS;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            EngagementIndex engagements = context.getEngagements();
+            for (int j = 0; j < count; j++) {
+                values[j] = 2 * engagements.getAttackerCount(defenderIds[j]);
+            }
+        }
+    };
+
+    /**
+     * is e attacking me?
+     */
+    public static final Feature BEING_ATTACKED = new Feature() {
+        @Override
+        public String getName() {
+            return "being attacked";
+        }
+
+        @Override
+        public int getAggregates() {
+            return ENGAGEMENTS;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            EngagementIndex engagements = context.getEngagements();
+            for (int j = 0; j < count; j++) {
+                values[j] = engagements.getTarget(defenderIds[j]) == attackerId ? 1 : 0;
+            }
+        }
+    };
+
+    /**
+     * is e the closest enemy?
+     */
+    public static final Feature CLOSEST_ENEMY = new Feature() {
+        @Override
+        public String getName() {
+            return "closest enemy";
+        }
+
+        @Override
+        public int getAggregates() {
+            return NEAREST_ENEMIES;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            int nearest = context.getTactics().getNearestEnemy(attackerId);
+            for (int j = 0; j < count; j++) {
+                values[j] = defenderIds[j] == nearest ? 10 : 0;
+            }
+        }
+    };
+
+    /**
+     * how much more health do i have?
+     */
+    public static final Feature HEALTH = new Feature() {
+        @Override
+        public String getName() {
+            return "health";
+        }
+
+        @Override
+        public int getAggregates() {
+            return 0;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            UnitRoster enemyFootmen = context.getEnemyFootmen();
+            int health = context.getHealth(attackerId);
+            for (int j = 0; j < count; j++) {
+                values[j] = health - enemyFootmen.getHP(enemyFootmen.slotOf(defenderIds[j]));
+            }
+        }
+    };
+
+    /**
+     * is e the weakest enemy?
+     */
+    public static final Feature WEAKEST_ENEMY = new Feature() {
+        @Override
+        public String getName() {
+            return "weakest enemy";
+        }
+
+        @Override
+        public int getAggregates() {
+            return HEALTH_RANK;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            int weakest = context.getTactics().getWeakestEnemy();
+            for (int j = 0; j < count; j++) {
+                values[j] = defenderIds[j] == weakest ? 1 : 0;
+            }
+        }
+    };
+
+    /**
+     * health of the enemy's victim
+     */
+    public static final Feature VICTIM_HEALTH = new Feature() {
+        @Override
+        public String getName() {
+            return "victim health";
+        }
+
+        @Override
+        public int getAggregates() {
+            return ENGAGEMENTS;
+        }
+
+        @Override
+        public void compute(FeatureContext context, int attackerId, int[] defenderIds, int count, double[] values) {
+            EngagementIndex engagements = context.getEngagements();
+            for (int j = 0; j < count; j++) {
+                int victim = engagements.getTarget(defenderIds[j]);
+                values[j] = victim != EngagementIndex.NO_TARGET ? context.getHealth(victim) : 0;
+            }
+        }
+    };
+
+    private final Feature[] features;
+
+    private final boolean[] active;
+    private int numActive;
+    private int aggregates;
+
+    private final int[] pairDefender = new int[1];
+    private final double[] pairValue = new double[1];
+
+    /**
+     * @param features the features in weight order, all active
+     */
+    public FeatureRegistry(Feature... features) {
+        if (features.length == 0) {
+            throw new IllegalArgumentException("A Q-function needs at least one feature");
+        }
+
+        this.features = features.clone();
+        active = new boolean[features.length];
+        activateAll();
+    }
+
+    /**
+     * @return the features of the assignment, RLAgent.NUM_FEATURES of them
+     */
+    public static FeatureRegistry defaults() {
+        return new FeatureRegistry(CONSTANT, FOOTMEN_ATTACKING, BEING_ATTACKED, CLOSEST_ENEMY, HEALTH,
+                WEAKEST_ENEMY, VICTIM_HEALTH);
+    }
+
+    /**
+     * @return the number of features, which is the length of a weight vector
+     */
+    public int size() {
+        return features.length;
+    }
+
+    public Feature get(int index) {
+        return features[index];
+    }
+
+    public String getName(int index) {
+        return features[index].getName();
+    }
+
+    /**
+     * Makes every feature active.
+     */
+    public void activateAll() {
+        Arrays.fill(active, true);
+        numActive = features.length;
+        updateAggregates();
+    }
+
+    /**
+     * Makes only the features whose weight is bigger than the threshold in magnitude active.
+     * @param weights   the weights the features will be scored with
+     * @param threshold the largest weight magnitude that is skipped
+     * @return the number of active features
+     */
+    public int activate(double[] weights, double threshold) {
+        if (weights.length != features.length) {
+            throw new IllegalArgumentException("Expected " + features.length + " weights but got " + weights.length);
+        }
+
+        numActive = 0;
+        for (int k = 0; k < features.length; k++) {
+            active[k] = Math.abs(weights[k]) > threshold;
+            if (active[k]) {
+                numActive++;
+            }
+        }
+        updateAggregates();
+        return numActive;
+    }
+
+    public int getActiveCount() {
+        return numActive;
+    }
+
+    public boolean isActive(int feature) {
+        return active[feature];
+    }
+
+    /**
+     * @return the aggregates the active features read, or'ed together
+     */
+    public int getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * Computes one feature of a footman against several enemies, 0 if the feature is not active.
+     * @param feature     the index of the feature
+     * @param context     the units and aggregates of the current turn
+     * @param attackerId  Your footman. The one doing the attacking.
+     * @param defenderIds the enemy footmen you are considering attacking
+     * @param count       the number of enemies in defenderIds
+     * @param values      filled with the value of the feature for each enemy
+     * @return values
+     */
+    public double[] compute(int feature, FeatureContext context, int attackerId, int[] defenderIds, int count,
+                            double[] values) {
+        if (active[feature]) {
+            features[feature].compute(context, attackerId, defenderIds, count, values);
+        } else {
+            Arrays.fill(values, 0, count, 0);
+        }
+        return values;
+    }
+
+    /**
+     * Fills the given array with the features of a pair, 0 for the inactive ones.
+     * @param context       the units and aggregates of the current turn
+     * @param attackerId    Your footman. The one doing the attacking.
+     * @param defenderId    An enemy footman. The one you are considering attacking.
+     * @param featureVector the array to fill, size() long
+     * @return featureVector
+     */
+    public double[] compute(FeatureContext context, int attackerId, int defenderId, double[] featureVector) {
+        pairDefender[0] = defenderId;
+        for (int k = 0; k < features.length; k++) {
+            compute(k, context, attackerId, pairDefender, 1, pairValue);
+            featureVector[k] = pairValue[0];
+        }
+        return featureVector;
+    }
+
+    private void updateAggregates() {
+        aggregates = 0;
+        for (int k = 0; k < features.length; k++) {
+            if (active[k]) {
+                aggregates |= features[k].getAggregates();
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains one agent per hyperparameter setting, several at a time, and ranks the settings by win rate.
+ * Every job is an independent RLTrainer run with its own map, environment and agent. Each job's seed is
+ * split off one master generator, so a sweep with the same master seed trains the same agents.
+ *
+ * Usage: HyperparameterSweep map episodes grid|random[:trials] [threads=N] [seed=N] name=spec ...
+ *
+ * A spec is a list of values, e.g. gamma=0.8,0.9,0.95, which a grid search tries all combinations of
+ * and a random search picks from, or for a random search a range min:max that values are drawn from
+ * uniformly. Any name Hyperparameters.withArgument knows works, including trainingEpisodes and
+ * evaluationEpisodes. A name with a single value is fixed for every job.
+ *
+ * The ranking is printed and written to sweep_results.csv together with the evaluation reward curves.
+ */
+public class HyperparameterSweep {
+
+    public static final String RESULTS_PATH = "sweep_results.csv";
+
+    private final String mapPath;
+    private final int episodes;
+    private final int numThreads;
+
+    /**
+     * Each worker thread parses the map once and reuses it for all of its jobs
+     */
+    private final ThreadLocal<StateCreator> maps = new ThreadLocal<>();
+
+    public HyperparameterSweep(String mapPath, int episodes, int numThreads) {
+        this.mapPath = mapPath;
+        this.episodes = episodes;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Every combination of the given values.
+     * @param base   the values of every hyperparameter not in specs
+     * @param specs  hyperparameter name to a list of values
+     * @param master the generator the job seeds are split from
+     * @return the settings to train
+     */
+    public static List<Hyperparameters> grid(Hyperparameters base, Map<String, String[]> specs, SplitRandom master) {
+        List<Hyperparameters> settings = new ArrayList<>();
+        settings.add(base);
+
+        for (Map.Entry<String, String[]> spec : specs.entrySet()) {
+            List<Hyperparameters> expanded = new ArrayList<>();
+            for (Hyperparameters setting : settings) {
+                for (String value : spec.getValue()) {
+                    expanded.add(setting.withArgument(spec.getKey() + "=" + value));
+                }
+            }
+            settings = expanded;
+        }
+
+        List<Hyperparameters> seeded = new ArrayList<>();
+        for (Hyperparameters setting : settings) {
+            seeded.add(setting.withSeed(master.split().nextLong()));
+        }
+        return seeded;
+    }
+
+    /**
+     * Settings drawn at random. A spec with a colon is a range, anything else a list to pick from.
+     * @param base   the values of every hyperparameter not in specs
+     * @param specs  hyperparameter name to a list of values or a min:max range
+     * @param trials the number of settings
+     * @param master the generator the values and job seeds are drawn from
+     * @return the settings to train
+     */
+    public static List<Hyperparameters> random(Hyperparameters base, Map<String, String[]> specs, int trials, SplitRandom master) {
+        List<Hyperparameters> settings = new ArrayList<>();
+
+        for (int trial = 0; trial < trials; trial++) {
+            SplitRandom trialRandom = master.split();
+            Hyperparameters setting = base;
+
+            for (Map.Entry<String, String[]> spec : specs.entrySet()) {
+                String[] values = spec.getValue();
+                String value;
+
+                if (values.length == 1 && values[0].contains(":")) {
+                    String[] range = values[0].split(":");
+                    value = drawFromRange(range[0].trim(), range[1].trim(), trialRandom);
+                } else {
+                    value = values[trialRandom.nextInt(values.length)];
+                }
+                setting = setting.withArgument(spec.getKey() + "=" + value);
+            }
+
+            settings.add(setting.withSeed(trialRandom.nextLong()));
+        }
+        return settings;
+    }
+
+    private static String drawFromRange(String min, String max, SplitRandom random) {
+        try {
+            int low = Integer.parseInt(min);
+            int high = Integer.parseInt(max);
+            return Integer.toString(low + random.nextInt(high - low + 1));
+        } catch (NumberFormatException e) {
+            double low = Double.parseDouble(min);
+            double high = Double.parseDouble(max);
+            return Double.toString(low + random.nextDouble() * (high - low));
+        }
+    }
+
+    /**
+     * Trains every setting and returns the results, best first.
+     * @param settings the hyperparameters of each job
+     * @return the results ranked by win rate, ties broken by the best evaluation reward
+     * @throws Exception if the map or the enemy agent cannot be loaded, or a job fails
+     */
+    public List<TrainingResult> run(List<Hyperparameters> settings) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<TrainingResult>> jobs = new ArrayList<>();
+
+        try {
+            for (final Hyperparameters setting : settings) {
+                jobs.add(pool.submit(new Callable<TrainingResult>() {
+                    @Override
+                    public TrainingResult call() throws Exception {
+                        return new RLTrainer(map()).train(episodes, setting);
+                    }
+                }));
+            }
+
+            List<TrainingResult> results = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    results.add(jobs.get(i).get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Sweep job " + settings.get(i) + " failed", e.getCause());
+                }
+                System.out.printf("finished %d of %d jobs\r", i + 1, jobs.size());
+            }
+            System.out.println();
+
+            Collections.sort(results, RANKING);
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private StateCreator map() throws Exception {
+        StateCreator map = maps.get();
+        if (map == null) {
+            map = SepiaEnvironment.loadMap(mapPath);
+            maps.set(map);
+        }
+        return map;
+    }
+
+    public static final Comparator<TrainingResult> RANKING = new Comparator<TrainingResult>() {
+        @Override
+        public int compare(TrainingResult first, TrainingResult second) {
+            int byWinRate = Double.compare(second.getWinRate(), first.getWinRate());
+            return byWinRate != 0 ? byWinRate : Double.compare(second.bestReward, first.bestReward);
+        }
+    };
+
+    /**
+     * Prints the ranking and writes it with the reward curves to RESULTS_PATH.
+     * @param results the ranked results
+     */
+    public static void report(List<TrainingResult> results) {
+        System.out.println("Rank  Win rate  Best eval  Last eval  Hyperparameters");
+        System.out.println("----  --------  ---------  ---------  ---------------");
+        for (int i = 0; i < results.size(); i++) {
+            TrainingResult result = results.get(i);
+            System.out.printf(Locale.ROOT, "%-4d  %7.2f%%  %9.2f  %9.2f  %s%n", i + 1, result.getWinRate() * 100,
+                    result.bestReward, lastEvaluation(result), result.hyperparameters);
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(RESULTS_PATH, false))) {
+            writer.write("rank,winRate,bestReward,lastReward,hyperparameters,evaluationRewards");
+            writer.newLine();
+            for (int i = 0; i < results.size(); i++) {
+                TrainingResult result = results.get(i);
+
+                StringBuilder curve = new StringBuilder();
+                for (int j = 0; j < result.evaluationRewards.length; j++) {
+                    if (j > 0) {
+                        curve.append(';');
+                    }
+                    curve.append(result.evaluationRewards[j]);
+                }
+
+                writer.write(String.format(Locale.ROOT, "%d,%f,%f,%f,\"%s\",%s", i + 1, result.getWinRate(),
+                        result.bestReward, lastEvaluation(result), result.hyperparameters, curve));
+                writer.newLine();
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to write " + RESULTS_PATH + ". Reason: " + ex.getMessage());
+        }
+    }
+
+    private static double lastEvaluation(TrainingResult result) {
+        double[] curve = result.evaluationRewards;
+        return curve.length == 0 ? 0 : curve[curve.length - 1];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: HyperparameterSweep map episodes grid|random[:trials] [threads=N] [seed=N] name=spec ...");
+            System.exit(1);
+        }
+
+        String mapPath = args[0];
+        int episodes = Integer.parseInt(args[1]);
+        String search = args[2];
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = Hyperparameters.DEFAULT_SEED;
+        Map<String, String[]> specs = new LinkedHashMap<>();
+
+        for (int i = 3; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected name=spec but got " + args[i]);
+            }
+            String name = args[i].substring(0, split).trim();
+            String spec = args[i].substring(split + 1).trim();
+
+            if (name.equals("threads")) {
+                threads = Integer.parseInt(spec);
+            } else if (name.equals("seed")) {
+                seed = Long.parseLong(spec);
+            } else {
+                specs.put(name, spec.split(","));
+            }
+        }
+
+        SplitRandom master = new SplitRandom(seed);
+        List<Hyperparameters> settings;
+        if (search.equals("grid")) {
+            settings = grid(Hyperparameters.defaults(), specs, master);
+        } else if (search.startsWith("random")) {
+            int trials = search.contains(":") ? Integer.parseInt(search.substring(search.indexOf(':') + 1)) : 10;
+            settings = random(Hyperparameters.defaults(), specs, trials, master);
+        } else {
+            throw new IllegalArgumentException("Unknown search " + search + ", expected grid or random");
+        }
+
+        System.out.printf("%d jobs of %d episodes on %d threads%n", settings.size(), episodes, threads);
+        report(new HyperparameterSweep(mapPath, episodes, threads).run(settings));
+    }
+}
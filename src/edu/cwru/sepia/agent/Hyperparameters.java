@@ -0,0 +1,386 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The learning parameters of an RLAgent. Instances are immutable, use the with methods to change a value.
+ *
+ * When the agent is configured from an XML config, any agent argument after the first two of the form
+ * name=value overrides the default, e.g. {@code <Argument>gamma=0.95</Argument>}.
+ */
+public class Hyperparameters {
+
+    /**
+     * How the weights are learned
+     */
+    public enum LearningMode {
+        /**
+         * a TD(lambda) step after every event
+         */
+        ONLINE,
+        /**
+         * least-squares policy iteration once per round of training episodes, see LstdqLearner
+         */
+        LSTDQ,
+        /**
+         * no learning at all, trained weights are loaded and played greedily
+         */
+        INFERENCE
+    }
+
+    /**
+     * Discount factor of future rewards
+     */
+    public final double gamma;
+
+    /**
+     * Step size of the weight updates
+     */
+    public final double learningRate;
+
+    /**
+     * Chance of attacking a random enemy instead of the best one
+     */
+    public final double epsilon;
+
+    /**
+     * Number of learning episodes before each round of evaluation episodes
+     */
+    public final int trainingEpisodes;
+
+    /**
+     * Number of evaluation episodes in a round. Their average reward is one point of the learning curve.
+     */
+    public final int evaluationEpisodes;
+
+    /**
+     * Number of transitions kept for experience replay, 0 to learn online only. See ReplayBuffer.
+     */
+    public final int replayCapacity;
+
+    /**
+     * Number of transitions replayed after every learning event
+     */
+    public final int replayBatchSize;
+
+    /**
+     * 0 to replay transitions uniformly, otherwise the exponent of the TD error in prioritized replay
+     */
+    public final double replayPriority;
+
+    /**
+     * Replay on a background thread instead of on the game thread between turns
+     */
+    public final boolean replayBackground;
+
+    /**
+     * Seed of the agent's random number generator, see SplitRandom
+     */
+    public final long seed;
+
+    /**
+     * Decay of the eligibility traces in TD(lambda), 0 updates only the last attack of each footman
+     */
+    public final double lambda;
+
+    /**
+     * Add up the updates of all footmen in an event and apply them at once instead of one after another
+     */
+    public final boolean batchUpdates;
+
+    /**
+     * Fraction of the footmen that must need a new target before every footman is replanned on an event.
+     * The default of 0 replans everyone on every event like the assignment does. See ReplanScheduler.
+     */
+    public final double replanThreshold;
+
+    public final LearningMode learningMode;
+
+    /**
+     * Most LSTD-Q solves per round of policy iteration in LSTDQ mode
+     */
+    public final int lspiIterations;
+
+    /**
+     * Number of the latest rounds of training episodes whose transitions LSTD-Q solves on in LSTDQ mode.
+     * Older rounds were played by older policies and are forgotten. See LstdqLearner.endRound.
+     */
+    public final int lspiRounds;
+
+    /**
+     * In inference mode, features whose weight is no bigger than this in magnitude are not computed.
+     * 0 only skips features with a weight of exactly 0, which does not change any Q-value. See FeatureRegistry.
+     */
+    public final double featureThreshold;
+
+    /**
+     * 0 to choose the target of every footman on its own, otherwise the footmen that need a target are
+     * assigned jointly with at most this many footmen on one enemy. See TargetAssigner.
+     */
+    public final int assignmentCapacity;
+
+    public Hyperparameters(double gamma, double learningRate, double epsilon, int trainingEpisodes, int evaluationEpisodes) {
+        this(new Builder(gamma, learningRate, epsilon, trainingEpisodes, evaluationEpisodes));
+    }
+
+    private Hyperparameters(Builder builder) {
+        if (builder.trainingEpisodes < 1 || builder.evaluationEpisodes < 1) {
+            throw new IllegalArgumentException("Every round needs at least one training and one evaluation episode");
+        }
+        if (builder.lambda < 0 || builder.lambda > 1) {
+            throw new IllegalArgumentException("lambda must be between 0 and 1");
+        }
+        if (builder.learningMode == null || builder.lspiIterations < 1) {
+            throw new IllegalArgumentException("A learning mode and at least one policy iteration are needed");
+        }
+        if (builder.lspiRounds < 1) {
+            throw new IllegalArgumentException("LSTD-Q needs at least one round of transitions");
+        }
+        if (builder.replanThreshold < 0 || builder.replanThreshold > 1) {
+            throw new IllegalArgumentException("replanThreshold must be between 0 and 1");
+        }
+        if (builder.featureThreshold < 0) {
+            throw new IllegalArgumentException("featureThreshold cannot be negative");
+        }
+        if (builder.assignmentCapacity < 0) {
+            throw new IllegalArgumentException("assignmentCapacity cannot be negative");
+        }
+        if (builder.replayCapacity < 0 || builder.replayBatchSize < 1) {
+            throw new IllegalArgumentException("The replay capacity cannot be negative and a batch needs at least one transition");
+        }
+
+        gamma = builder.gamma;
+        learningRate = builder.learningRate;
+        epsilon = builder.epsilon;
+        trainingEpisodes = builder.trainingEpisodes;
+        evaluationEpisodes = builder.evaluationEpisodes;
+        replayCapacity = builder.replayCapacity;
+        replayBatchSize = builder.replayBatchSize;
+        replayPriority = builder.replayPriority;
+        replayBackground = builder.replayBackground;
+        seed = builder.seed;
+        lambda = builder.lambda;
+        batchUpdates = builder.batchUpdates;
+        replanThreshold = builder.replanThreshold;
+        learningMode = builder.learningMode;
+        lspiIterations = builder.lspiIterations;
+        lspiRounds = builder.lspiRounds;
+        featureThreshold = builder.featureThreshold;
+        assignmentCapacity = builder.assignmentCapacity;
+    }
+
+    /**
+     * The values of a Hyperparameters while some of them are changed. Everything but the values of the
+     * assignment starts at its default, so a new parameter is a field here, its copy and its with method.
+     */
+    private static class Builder {
+        private double gamma;
+        private double learningRate;
+        private double epsilon;
+        private int trainingEpisodes;
+        private int evaluationEpisodes;
+        private int replayCapacity = 0;
+        private int replayBatchSize = 32;
+        private double replayPriority = 0;
+        private boolean replayBackground = false;
+        private long seed = DEFAULT_SEED;
+        private double lambda = 0;
+        private boolean batchUpdates = false;
+        private double replanThreshold = 0;
+        private LearningMode learningMode = LearningMode.ONLINE;
+        private int lspiIterations = 10;
+        private int lspiRounds = 5;
+        private double featureThreshold = 0;
+        private int assignmentCapacity = 0;
+
+        private Builder(double gamma, double learningRate, double epsilon, int trainingEpisodes, int evaluationEpisodes) {
+            this.gamma = gamma;
+            this.learningRate = learningRate;
+            this.epsilon = epsilon;
+            this.trainingEpisodes = trainingEpisodes;
+            this.evaluationEpisodes = evaluationEpisodes;
+        }
+
+        private Builder(Hyperparameters from) {
+            gamma = from.gamma;
+            learningRate = from.learningRate;
+            epsilon = from.epsilon;
+            trainingEpisodes = from.trainingEpisodes;
+            evaluationEpisodes = from.evaluationEpisodes;
+            replayCapacity = from.replayCapacity;
+            replayBatchSize = from.replayBatchSize;
+            replayPriority = from.replayPriority;
+            replayBackground = from.replayBackground;
+            seed = from.seed;
+            lambda = from.lambda;
+            batchUpdates = from.batchUpdates;
+            replanThreshold = from.replanThreshold;
+            learningMode = from.learningMode;
+            lspiIterations = from.lspiIterations;
+            lspiRounds = from.lspiRounds;
+            featureThreshold = from.featureThreshold;
+            assignmentCapacity = from.assignmentCapacity;
+        }
+
+        private Hyperparameters build() {
+            return new Hyperparameters(this);
+        }
+    }
+
+    /**
+     * The seed the assignment's java.util.Random used. The agent draws from a SplitRandom, whose sequence
+     * is different, so the same seed does not give the assignment's initial weights or exploration.
+     */
+    public static final long DEFAULT_SEED = 12345;
+
+    /**
+     * @return the values from the assignment definition
+     */
+    public static Hyperparameters defaults() {
+        return new Hyperparameters(0.9, .0001, .02, 10, 5);
+    }
+
+    public Hyperparameters withGamma(double gamma) {
+        Builder builder = new Builder(this);
+        builder.gamma = gamma;
+        return builder.build();
+    }
+
+    public Hyperparameters withLearningRate(double learningRate) {
+        Builder builder = new Builder(this);
+        builder.learningRate = learningRate;
+        return builder.build();
+    }
+
+    public Hyperparameters withEpsilon(double epsilon) {
+        Builder builder = new Builder(this);
+        builder.epsilon = epsilon;
+        return builder.build();
+    }
+
+    public Hyperparameters withSchedule(int trainingEpisodes, int evaluationEpisodes) {
+        Builder builder = new Builder(this);
+        builder.trainingEpisodes = trainingEpisodes;
+        builder.evaluationEpisodes = evaluationEpisodes;
+        return builder.build();
+    }
+
+    public Hyperparameters withReplay(int replayCapacity, int replayBatchSize, double replayPriority, boolean replayBackground) {
+        Builder builder = new Builder(this);
+        builder.replayCapacity = replayCapacity;
+        builder.replayBatchSize = replayBatchSize;
+        builder.replayPriority = replayPriority;
+        builder.replayBackground = replayBackground;
+        return builder.build();
+    }
+
+    public Hyperparameters withSeed(long seed) {
+        Builder builder = new Builder(this);
+        builder.seed = seed;
+        return builder.build();
+    }
+
+    public Hyperparameters withTraces(double lambda, boolean batchUpdates) {
+        Builder builder = new Builder(this);
+        builder.lambda = lambda;
+        builder.batchUpdates = batchUpdates;
+        return builder.build();
+    }
+
+    public Hyperparameters withReplanThreshold(double replanThreshold) {
+        Builder builder = new Builder(this);
+        builder.replanThreshold = replanThreshold;
+        return builder.build();
+    }
+
+    public Hyperparameters withLearningMode(LearningMode learningMode, int lspiIterations) {
+        Builder builder = new Builder(this);
+        builder.learningMode = learningMode;
+        builder.lspiIterations = lspiIterations;
+        return builder.build();
+    }
+
+    public Hyperparameters withLspiRounds(int lspiRounds) {
+        Builder builder = new Builder(this);
+        builder.lspiRounds = lspiRounds;
+        return builder.build();
+    }
+
+    public Hyperparameters withFeatureThreshold(double featureThreshold) {
+        Builder builder = new Builder(this);
+        builder.featureThreshold = featureThreshold;
+        return builder.build();
+    }
+
+    public Hyperparameters withAssignmentCapacity(int assignmentCapacity) {
+        Builder builder = new Builder(this);
+        builder.assignmentCapacity = assignmentCapacity;
+        return builder.build();
+    }
+
+    /**
+     * Applies a name=value argument.
+     * @param argument the argument, e.g. epsilon=0.05
+     * @return the updated hyperparameters
+     * @throws IllegalArgumentException if the name is unknown or the value is not a number
+     */
+    public Hyperparameters withArgument(String argument) {
+        int split = argument.indexOf('=');
+        if (split < 0) {
+            throw new IllegalArgumentException("Expected name=value but got " + argument);
+        }
+
+        String name = argument.substring(0, split).trim();
+        String value = argument.substring(split + 1).trim();
+
+        switch (name) {
+            case "gamma":
+                return withGamma(Double.parseDouble(value));
+            case "learningRate":
+                return withLearningRate(Double.parseDouble(value));
+            case "epsilon":
+                return withEpsilon(Double.parseDouble(value));
+            case "trainingEpisodes":
+                return withSchedule(Integer.parseInt(value), evaluationEpisodes);
+            case "evaluationEpisodes":
+                return withSchedule(trainingEpisodes, Integer.parseInt(value));
+            case "replayCapacity":
+                return withReplay(Integer.parseInt(value), replayBatchSize, replayPriority, replayBackground);
+            case "replayBatchSize":
+                return withReplay(replayCapacity, Integer.parseInt(value), replayPriority, replayBackground);
+            case "replayPriority":
+                return withReplay(replayCapacity, replayBatchSize, Double.parseDouble(value), replayBackground);
+            case "replayBackground":
+                return withReplay(replayCapacity, replayBatchSize, replayPriority, Boolean.parseBoolean(value));
+            case "seed":
+                return withSeed(Long.parseLong(value));
+            case "lambda":
+                return withTraces(Double.parseDouble(value), batchUpdates);
+            case "batchUpdates":
+                return withTraces(lambda, Boolean.parseBoolean(value));
+            case "replanThreshold":
+                return withReplanThreshold(Double.parseDouble(value));
+            case "learningMode":
+                return withLearningMode(LearningMode.valueOf(value.toUpperCase()), lspiIterations);
+            case "lspiIterations":
+                return withLearningMode(learningMode, Integer.parseInt(value));
+            case "lspiRounds":
+                return withLspiRounds(Integer.parseInt(value));
+            case "featureThreshold":
+                return withFeatureThreshold(Double.parseDouble(value));
+            case "assignmentCapacity":
+                return withAssignmentCapacity(Integer.parseInt(value));
+            default:
+                throw new IllegalArgumentException("Unknown hyperparameter " + name);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("gamma=%s learningRate=%s epsilon=%s trainingEpisodes=%d evaluationEpisodes=%d"
+                        + " replayCapacity=%d replayBatchSize=%d replayPriority=%s replayBackground=%b seed=%d"
+                        + " lambda=%s batchUpdates=%b replanThreshold=%s learningMode=%s lspiIterations=%d"
+                        + " lspiRounds=%d featureThreshold=%s assignmentCapacity=%d",
+                gamma, learningRate, epsilon, trainingEpisodes, evaluationEpisodes,
+                replayCapacity, replayBatchSize, replayPriority, replayBackground, seed, lambda, batchUpdates, replanThreshold,
+                learningMode.name().toLowerCase(), lspiIterations, lspiRounds, featureThreshold, assignmentCapacity);
+    }
+}
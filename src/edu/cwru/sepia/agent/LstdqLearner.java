@@ -0,0 +1,358 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Least-squares policy iteration (LSPI) with LSTD-Q as the policy evaluation step. Instead of taking
+ * small gradient steps after every event, the learner keeps the transitions it is given and solves for
+ * the weights of the linear Q-function directly:
+ *
+ * A = sum of phi (phi - gamma phi')^T, b = sum of phi r, and the weights solve (A + RIDGE I) w = b
+ *
+ * where phi are the features of the attack a footman was doing, r its reward and phi' the features of
+ * the attack the current weights would choose next. Every transition keeps the features of all attacks
+ * the footman could make next, so phi' can be picked again for new weights. solve() alternates LSTD-Q
+ * and picking phi' until the weights stop changing, which is one round of policy iteration. The agent
+ * then plays a new round with the new weights and adds those transitions to the ones it has. Only the
+ * last few rounds are kept, see endRound, so memory and the cost of a solve stay bounded.
+ *
+ * Unlike the online update the next Q-value is not clipped at 0, which would make the problem nonlinear.
+ */
+public class LstdqLearner {
+
+    /**
+     * Added to the diagonal of A so the system can be solved before every feature has been seen
+     */
+    public static final double RIDGE = 1e-3;
+
+    /**
+     * solve() stops once no weight changes by more than this
+     */
+    public static final double TOLERANCE = 1e-6;
+
+    private final int numFeatures;
+
+    /**
+     * features and reward of each transition, and where its candidates start in candidateFeatures
+     */
+    private double[] features = new double[0];
+    private double[] rewards = new double[0];
+    private int[] candidateStart = new int[1];
+    private double[] candidateFeatures = new double[0];
+    private int size;
+    private int candidates;
+
+    /**
+     * the number of transitions at the end of each kept round that has ended
+     */
+    private int[] roundEnd = new int[4];
+    private int rounds;
+
+    private final double[][] a;
+    private final double[] b;
+    private final double[] nextFeatures;
+
+    public LstdqLearner(int numFeatures) {
+        this.numFeatures = numFeatures;
+        a = new double[numFeatures][numFeatures];
+        b = new double[numFeatures];
+        nextFeatures = new double[numFeatures];
+    }
+
+    /**
+     * @return the number of transitions kept
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+        candidates = 0;
+        rounds = 0;
+    }
+
+    /**
+     * Ends the round of the transitions added since the last call and forgets the oldest rounds so at
+     * most maxRounds are kept. Older rounds were played by older policies.
+     * @param maxRounds the most rounds to keep, at least 1
+     */
+    public void endRound(int maxRounds) {
+        if (rounds == roundEnd.length) {
+            roundEnd = Arrays.copyOf(roundEnd, rounds * 2);
+        }
+        roundEnd[rounds++] = size;
+
+        if (rounds > maxRounds) {
+            dropRounds(rounds - maxRounds);
+        }
+    }
+
+    /**
+     * Removes the transitions of the oldest rounds and moves the rest to the front.
+     */
+    private void dropRounds(int count) {
+        int dropped = roundEnd[count - 1];
+        int droppedCandidates = candidateStart[dropped];
+
+        size -= dropped;
+        candidates -= droppedCandidates;
+        System.arraycopy(features, dropped * numFeatures, features, 0, size * numFeatures);
+        System.arraycopy(rewards, dropped, rewards, 0, size);
+        for (int t = 0; t <= size; t++) {
+            candidateStart[t] = candidateStart[t + dropped] - droppedCandidates;
+        }
+        System.arraycopy(candidateFeatures, droppedCandidates * numFeatures, candidateFeatures, 0, candidates * numFeatures);
+
+        rounds -= count;
+        for (int r = 0; r < rounds; r++) {
+            roundEnd[r] = roundEnd[r + count] - dropped;
+        }
+    }
+
+    /**
+     * Adds a transition. The attacks the footman could make next are added with addCandidate before the
+     * next call.
+     * @param transitionFeatures array holding the features of the attack the footman was doing
+     * @param offset             where those features start
+     * @param reward             the reward of the footman
+     */
+    public void addTransition(double[] transitionFeatures, int offset, double reward) {
+        if (size == rewards.length) {
+            int newSize = Math.max(16, size * 2);
+            features = Arrays.copyOf(features, newSize * numFeatures);
+            rewards = Arrays.copyOf(rewards, newSize);
+            candidateStart = Arrays.copyOf(candidateStart, newSize + 1);
+        }
+
+        System.arraycopy(transitionFeatures, offset, features, size * numFeatures, numFeatures);
+        rewards[size] = reward;
+        size++;
+        candidateStart[size] = candidates;
+    }
+
+    /**
+     * Adds the features of an attack the footman of the last transition could make next.
+     * @param candidate the feature vector, copied
+     */
+    public void addCandidate(double[] candidate) {
+        if ((candidates + 1) * numFeatures > candidateFeatures.length) {
+            candidateFeatures = Arrays.copyOf(candidateFeatures, Math.max(16 * numFeatures, candidateFeatures.length * 2));
+        }
+
+        System.arraycopy(candidate, 0, candidateFeatures, candidates * numFeatures, numFeatures);
+        candidates++;
+        candidateStart[size] = candidates;
+    }
+
+    /**
+     * Writes every kept transition with its candidates and where the rounds end, see read.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(numFeatures);
+        out.writeInt(size);
+        out.writeInt(candidates);
+        for (int i = 0; i < size * numFeatures; i++) {
+            out.writeDouble(features[i]);
+        }
+        for (int t = 0; t < size; t++) {
+            out.writeDouble(rewards[t]);
+            out.writeInt(candidateStart[t + 1]);
+        }
+        for (int i = 0; i < candidates * numFeatures; i++) {
+            out.writeDouble(candidateFeatures[i]);
+        }
+        out.writeInt(rounds);
+        for (int r = 0; r < rounds; r++) {
+            out.writeInt(roundEnd[r]);
+        }
+    }
+
+    /**
+     * Reads the transitions written by write.
+     * @param in where to read from
+     * @return a learner keeping the same transitions
+     * @throws IOException if reading fails or the data is not a learner's
+     */
+    public static LstdqLearner read(DataInput in) throws IOException {
+        int numFeatures = in.readInt();
+        int size = in.readInt();
+        int candidates = in.readInt();
+        if (numFeatures < 1 || size < 0 || candidates < 0) {
+            throw new IOException("Invalid least-squares transitions");
+        }
+
+        LstdqLearner learner = new LstdqLearner(numFeatures);
+        learner.size = size;
+        learner.candidates = candidates;
+        learner.features = new double[size * numFeatures];
+        learner.rewards = new double[size];
+        learner.candidateStart = new int[size + 1];
+        learner.candidateFeatures = new double[candidates * numFeatures];
+
+        for (int i = 0; i < size * numFeatures; i++) {
+            learner.features[i] = in.readDouble();
+        }
+        for (int t = 0; t < size; t++) {
+            learner.rewards[t] = in.readDouble();
+            learner.candidateStart[t + 1] = in.readInt();
+            if (learner.candidateStart[t + 1] < learner.candidateStart[t] || learner.candidateStart[t + 1] > candidates) {
+                throw new IOException("Invalid least-squares candidates");
+            }
+        }
+        for (int i = 0; i < candidates * numFeatures; i++) {
+            learner.candidateFeatures[i] = in.readDouble();
+        }
+
+        int rounds = in.readInt();
+        if (rounds < 0) {
+            throw new IOException("Invalid least-squares rounds");
+        }
+        learner.rounds = rounds;
+        learner.roundEnd = new int[Math.max(4, rounds)];
+        for (int r = 0; r < rounds; r++) {
+            learner.roundEnd[r] = in.readInt();
+            if (learner.roundEnd[r] < (r > 0 ? learner.roundEnd[r - 1] : 0) || learner.roundEnd[r] > size) {
+                throw new IOException("Invalid least-squares rounds");
+            }
+        }
+        return learner;
+    }
+
+    /**
+     * Runs policy evaluation and improvement on the kept transitions until the weights settle.
+     * @param weights       the weights of the policy the transitions are evaluated for first, not modified
+     * @param gamma         the discount factor
+     * @param maxIterations the most LSTD-Q solves to run
+     * @return the new weights, or a copy of weights if there are no transitions
+     */
+    public double[] solve(double[] weights, double gamma, int maxIterations) {
+        double[] current = weights.clone();
+        if (size == 0) {
+            return current;
+        }
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            double[] next = evaluate(current, gamma);
+
+            double change = 0;
+            for (int k = 0; k < numFeatures; k++) {
+                change = Math.max(change, Math.abs(next[k] - current[k]));
+            }
+            current = next;
+            if (change < TOLERANCE) {
+                break;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * One LSTD-Q solve: the weights of the Q-function of the greedy policy of the given weights.
+     */
+    private double[] evaluate(double[] policy, double gamma) {
+        for (int i = 0; i < numFeatures; i++) {
+            Arrays.fill(a[i], 0);
+            a[i][i] = RIDGE;
+        }
+        Arrays.fill(b, 0);
+
+        for (int t = 0; t < size; t++) {
+            int offset = t * numFeatures;
+            greedyCandidate(t, policy);
+
+            for (int i = 0; i < numFeatures; i++) {
+                double phi = features[offset + i];
+                if (phi == 0) {
+                    continue;
+                }
+                for (int j = 0; j < numFeatures; j++) {
+                    a[i][j] += phi * (features[offset + j] - gamma * nextFeatures[j]);
+                }
+                b[i] += phi * rewards[t];
+            }
+        }
+
+        return solveLinearSystem(a, b);
+    }
+
+    /**
+     * Fills nextFeatures with the candidate of a transition with the highest Q-value, or zeros if it has none.
+     */
+    private void greedyCandidate(int transition, double[] policy) {
+        int best = -1;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int c = candidateStart[transition]; c < candidateStart[transition + 1]; c++) {
+            double value = 0;
+            for (int k = 0; k < numFeatures; k++) {
+                value += policy[k] * candidateFeatures[c * numFeatures + k];
+            }
+            if (value > bestValue) {
+                bestValue = value;
+                best = c;
+            }
+        }
+
+        if (best < 0) {
+            Arrays.fill(nextFeatures, 0);
+        } else {
+            System.arraycopy(candidateFeatures, best * numFeatures, nextFeatures, 0, numFeatures);
+        }
+    }
+
+    /**
+     * Solves m x = y by Gaussian elimination with partial pivoting.
+     * @param m a square matrix, overwritten
+     * @param y the right hand side, overwritten
+     * @return x
+     * @throws IllegalStateException if the matrix is singular
+     */
+    public static double[] solveLinearSystem(double[][] m, double[] y) {
+        int n = y.length;
+
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < n; row++) {
+                if (Math.abs(m[row][column]) > Math.abs(m[pivot][column])) {
+                    pivot = row;
+                }
+            }
+            if (m[pivot][column] == 0) {
+                throw new IllegalStateException("The least-squares system is singular");
+            }
+
+            double[] swapRow = m[column];
+            m[column] = m[pivot];
+            m[pivot] = swapRow;
+            double swapValue = y[column];
+            y[column] = y[pivot];
+            y[pivot] = swapValue;
+
+            for (int row = column + 1; row < n; row++) {
+                double factor = m[row][column] / m[column][column];
+                if (factor == 0) {
+                    continue;
+                }
+                for (int k = column; k < n; k++) {
+                    m[row][k] -= factor * m[column][k];
+                }
+                y[row] -= factor * y[column];
+            }
+        }
+
+        double[] x = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = y[row];
+            for (int k = row + 1; k < n; k++) {
+                sum -= m[row][k] * x[k];
+            }
+            x[row] = sum / m[row][row];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,234 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends one CSV line per finished episode to a log file as the run goes, and keeps the moving average
+ * reward and the win rate of the last few episodes. Memory use does not depend on the number of episodes.
+ *
+ * Columns: episode, mode (learning or evaluation), cumulative reward, won (1 or 0), turns, events.
+ *
+ * The log is buffered and flushed on a schedule by a background thread, so it can be followed with
+ * tail -f while the agent is running and at most one flush interval is lost if the run is killed.
+ */
+public class MetricsSink implements Closeable {
+
+    public static final String HEADER = "episode,mode,reward,won,turns,events";
+
+    private final BufferedWriter writer;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Ring buffers of the last window episodes
+     */
+    private final double[] windowRewards;
+    private final boolean[] windowWins;
+    private int windowSize;
+    private int windowNext;
+    private double windowRewardSum;
+    private int windowWinCount;
+
+    private long episodes;
+
+    /**
+     * @param path         the CSV file, overwritten
+     * @param window       the number of episodes the rolling aggregates are over
+     * @param flushSeconds how often the log is flushed to disk
+     * @throws IOException if the file cannot be created
+     */
+    public MetricsSink(String path, int window, long flushSeconds) throws IOException {
+        this(path, window, flushSeconds, 0);
+    }
+
+    /**
+     * A resumed run keeps the lines of the episodes its training state has, and the rolling aggregates
+     * start from them. Lines of later episodes were played after the state was saved and are played again,
+     * so they are dropped.
+     * @param path         the CSV file
+     * @param window       the number of episodes the rolling aggregates are over
+     * @param flushSeconds how often the log is flushed to disk
+     * @param keptEpisodes the number of episodes of a resumed run to keep, 0 to overwrite the file
+     * @throws IOException if the file cannot be created
+     */
+    public MetricsSink(String path, int window, long flushSeconds, int keptEpisodes) throws IOException {
+        if (window < 1) {
+            throw new IllegalArgumentException("The window needs at least one episode");
+        }
+
+        windowRewards = new double[window];
+        windowWins = new boolean[window];
+
+        boolean kept = keptEpisodes > 0 && new File(path).length() > 0 && keepEpisodes(path, keptEpisodes);
+        writer = new BufferedWriter(new FileWriter(path, kept));
+        if (!kept) {
+            writer.write(HEADER);
+            writer.newLine();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a finished episode.
+     * @param episode  the episode number
+     * @param learning true for a learning episode, false for an evaluation episode
+     * @param reward   the cumulative reward of the episode
+     * @param won      whether the agent won
+     * @param turns    the number of turns the episode took
+     * @param events   the number of turns with an event
+     */
+    public synchronized void record(int episode, boolean learning, double reward, boolean won, int turns, int events) {
+        try {
+            writer.write(Integer.toString(episode));
+            writer.write(learning ? ",learning," : ",evaluation,");
+            writer.write(Double.toString(reward));
+            writer.write(won ? ",1," : ",0,");
+            writer.write(Integer.toString(turns));
+            writer.write(',');
+            writer.write(Integer.toString(events));
+            writer.newLine();
+        } catch (IOException ex) {
+            System.err.println("Failed to write episode metrics. Reason: " + ex.getMessage());
+        }
+
+        addToWindow(reward, won);
+        episodes++;
+    }
+
+    private void addToWindow(double reward, boolean won) {
+        if (windowSize == windowRewards.length) {
+            windowRewardSum -= windowRewards[windowNext];
+            if (windowWins[windowNext]) {
+                windowWinCount--;
+            }
+        } else {
+            windowSize++;
+        }
+
+        windowRewards[windowNext] = reward;
+        windowWins[windowNext] = won;
+        windowRewardSum += reward;
+        if (won) {
+            windowWinCount++;
+        }
+        windowNext = (windowNext + 1) % windowRewards.length;
+    }
+
+    /**
+     * Rewrites the log with the header and the lines of the first episodes only, through a temporary file
+     * so memory use does not depend on its length. The kept lines are added to the rolling aggregates.
+     * @param path         the CSV file
+     * @param keptEpisodes the last episode to keep
+     * @return false if the file has no header, it is overwritten then
+     * @throws IOException if the file cannot be rewritten
+     */
+    private boolean keepEpisodes(String path, int keptEpisodes) throws IOException {
+        Path log = Paths.get(path);
+        Path kept = Paths.get(path + ".tmp");
+
+        try (BufferedReader reader = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return false;
+            }
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(log, StandardCharsets.UTF_8);
+             BufferedWriter keptWriter = Files.newBufferedWriter(kept, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            keptWriter.write(HEADER);
+            keptWriter.newLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // a line cut off by a crash has fewer columns and is dropped
+                String[] columns = line.split(",");
+                if (columns.length != 6) {
+                    continue;
+                }
+                try {
+                    if (Integer.parseInt(columns[0]) > keptEpisodes) {
+                        continue;
+                    }
+                    addToWindow(Double.parseDouble(columns[2]), "1".equals(columns[3]));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                keptWriter.write(line);
+                keptWriter.newLine();
+                episodes++;
+            }
+        }
+
+        Files.move(kept, log, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * @return the number of episodes recorded
+     */
+    public synchronized long getEpisodes() {
+        return episodes;
+    }
+
+    /**
+     * @return the average cumulative reward of the last window episodes
+     */
+    public synchronized double getMovingAverage() {
+        return windowSize == 0 ? 0 : windowRewardSum / windowSize;
+    }
+
+    /**
+     * @return the fraction of the last window episodes that were won
+     */
+    public synchronized double getWinRate() {
+        return windowSize == 0 ? 0 : (double) windowWinCount / windowSize;
+    }
+
+    public synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to flush episode metrics. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Stops the scheduled flushes and closes the log.
+     */
+    @Override
+    public synchronized void close() {
+        flusher.shutdown();
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close episode metrics. Reason: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Trains one weight vector with several SEPIA games running at once. Every worker thread has its own
+ * map, environment and RLAgent, and all the agents learn on the same SharedWeights. Each agent and each
+ * environment gets its own seed, split off the seed of the hyperparameters, so the workers explore and
+ * play different games.
+ *
+ * Usage: ParallelTrainer map threads episodesPerThread [hogwild|atomic|synchronous] [syncInterval] [name=value ...]
+ *
+ * Running with one thread gives the serial baseline to compare episodes per second and win rate against.
+ */
+public class ParallelTrainer {
+
+    /**
+     * Number of finished episodes per point of the win rate curve
+     */
+    public static final int WINDOW = 100;
+
+    private final String mapPath;
+    private final Hyperparameters hyperparameters;
+    private final int numThreads;
+    private final int episodesPerThread;
+    private final SharedWeights.Mode mode;
+    private final int syncInterval;
+
+    private RLAgent[] agents;
+    private SharedWeights sharedWeights;
+
+    private final AtomicInteger episodesFinished = new AtomicInteger();
+    private AtomicIntegerArray windowWins;
+
+    /**
+     * @param mapPath           path to the map xml, e.g. data/rl_5fv5f.xml
+     * @param hyperparameters   the learning parameters of every worker, the seed seeds the workers
+     * @param numThreads        number of games running at once
+     * @param episodesPerThread number of episodes each worker plays
+     * @param mode              how the workers share their weights
+     * @param syncInterval      episodes between weight averages in synchronous mode
+     */
+    public ParallelTrainer(String mapPath, Hyperparameters hyperparameters, int numThreads, int episodesPerThread,
+                           SharedWeights.Mode mode, int syncInterval) {
+        this.mapPath = mapPath;
+        this.hyperparameters = hyperparameters;
+        this.numThreads = numThreads;
+        this.episodesPerThread = episodesPerThread;
+        this.mode = mode;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Runs every worker to completion.
+     * @return the trained weights
+     * @throws Exception if the map or the enemy agent cannot be loaded, or a worker fails
+     */
+    public double[] train() throws Exception {
+        agents = new RLAgent[numThreads];
+        StateCreator[] maps = new StateCreator[numThreads];
+        int[] environmentSeeds = new int[numThreads];
+        SplitRandom master = new SplitRandom(hyperparameters.seed);
+        for (int i = 0; i < numThreads; i++) {
+            SplitRandom workerRandom = master.split();
+            agents[i] = new RLAgent(0, episodesPerThread, hyperparameters.withSeed(workerRandom.nextLong()), null);
+            maps[i] = SepiaEnvironment.loadMap(mapPath);
+            environmentSeeds[i] = workerRandom.nextInt();
+        }
+
+        sharedWeights = new SharedWeights(agents[0].weights, mode);
+        for (RLAgent agent : agents) {
+            agent.setSharedWeights(sharedWeights);
+        }
+
+        int totalEpisodes = numThreads * episodesPerThread;
+        windowWins = new AtomicIntegerArray((totalEpisodes + WINDOW - 1) / WINDOW);
+
+        final CyclicBarrier barrier = new CyclicBarrier(numThreads, new Runnable() {
+            @Override
+            public void run() {
+                syncWeights();
+            }
+        });
+
+        Thread[] workers = new Thread[numThreads];
+        final Exception[] failures = new Exception[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int worker = i;
+            final SepiaEnvironment environment = new SepiaEnvironment(maps[i], agents[i], environmentSeeds[i]);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runWorker(agents[worker], environment, barrier);
+                    } catch (Exception e) {
+                        failures[worker] = e;
+                        barrier.reset();
+                    } finally {
+                        environment.close();
+                        agents[worker].close();
+                    }
+                }
+            }, "trainer-" + i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        if (mode == SharedWeights.Mode.SYNCHRONOUS) {
+            syncWeights();
+        }
+
+        printReport(seconds);
+        return sharedWeights.snapshot();
+    }
+
+    private void runWorker(RLAgent agent, SepiaEnvironment environment, CyclicBarrier barrier)
+            throws InterruptedException, BrokenBarrierException {
+
+        for (int episode = 1; episode <= episodesPerThread; episode++) {
+            int wonBefore = agent.getEpisodesWon();
+            environment.runEpisode();
+
+            int finished = episodesFinished.getAndIncrement();
+            if (agent.getEpisodesWon() > wonBefore) {
+                windowWins.incrementAndGet(finished / WINDOW);
+            }
+
+            if (mode == SharedWeights.Mode.SYNCHRONOUS && episode % syncInterval == 0) {
+                barrier.await();
+            }
+        }
+    }
+
+    /**
+     * Averages the weights of all agents and hands the average back to each of them.
+     * Runs while every worker is waiting at the barrier.
+     */
+    private void syncWeights() {
+        double[][] workerWeights = new double[agents.length][];
+        for (int i = 0; i < agents.length; i++) {
+            workerWeights[i] = agents[i].weights;
+        }
+
+        sharedWeights.average(workerWeights);
+        for (RLAgent agent : agents) {
+            agent.weights = sharedWeights.snapshot();
+        }
+    }
+
+    private void printReport(double seconds) {
+        int totalEpisodes = episodesFinished.get();
+        System.out.printf("%d threads, %s updates: %d episodes in %.1fs, %.2f episodes/s%n",
+                numThreads, mode.toString().toLowerCase(), totalEpisodes, seconds, totalEpisodes / seconds);
+
+        System.out.println("Episodes          Win rate");
+        System.out.println("-------------     --------");
+        for (int i = 0; i < windowWins.length(); i++) {
+            int windowSize = Math.min(WINDOW, totalEpisodes - i * WINDOW);
+            System.out.printf("%-18d%.2f%%%n", (i + 1) * WINDOW, 100.0 * windowWins.get(i) / windowSize);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ParallelTrainer map threads episodesPerThread [hogwild|atomic|synchronous] [syncInterval] [name=value ...]");
+            System.exit(1);
+        }
+
+        // the optional mode and sync interval come first, hyperparameters are the arguments with an =
+        int first = 3;
+        while (first < args.length && first < 5 && !args[first].contains("=")) {
+            first++;
+        }
+        SharedWeights.Mode mode = first >= 4 ? SharedWeights.Mode.valueOf(args[3].toUpperCase()) : SharedWeights.Mode.HOGWILD;
+        int syncInterval = first >= 5 ? Integer.parseInt(args[4]) : 10;
+
+        Hyperparameters hyperparameters = Hyperparameters.defaults();
+        for (int i = first; i < args.length; i++) {
+            hyperparameters = hyperparameters.withArgument(args[i]);
+        }
+
+        ParallelTrainer trainer = new ParallelTrainer(args[0], hyperparameters, Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]), mode, syncInterval);
+        double[] weights = trainer.train();
+
+        trainer.agents[0].saveWeights(weights);
+    }
+}
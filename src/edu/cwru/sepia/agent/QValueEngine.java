@@ -0,0 +1,195 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Scores every footman/enemy pair of a turn in one pass. The features of all pairs live in one flat
+ * block stored feature-major: feature k of pair p is at block[k * capacity + p], where pair p is
+ * row * cols + col. Scoring is then one multiply-add sweep per feature over contiguous memory,
+ * a loop shape that HotSpot's C2 compiler turns into SIMD instructions.
+ *
+ * The scalar kernel walks the same block one pair at a time. Both kernels add the terms of every
+ * pair in feature order starting from 0, so they produce bit-for-bit identical Q-values. The kernel
+ * is chosen at startup with -Drlagent.qengine=scalar|vector, vector being the default.
+ */
+public class QValueEngine {
+
+    public static final boolean VECTOR_KERNEL = !"scalar".equals(System.getProperty("rlagent.qengine"));
+
+    private final int numFeatures;
+
+    private int rows;
+    private int cols;
+    private int capacity;
+
+    private double[] block = new double[0];
+    private double[] qValues = new double[0];
+    private double[] rowValues = new double[0];
+
+    /**
+     * weights the current Q-values were computed with, only valid while scored is true
+     */
+    private final double[] scoredWeights;
+    private boolean scored;
+
+    public QValueEngine(int numFeatures) {
+        this.numFeatures = numFeatures;
+        scoredWeights = new double[numFeatures];
+    }
+
+    /**
+     * Sets the matrix size for a new turn. Previously stored features are no longer valid.
+     * @param rows number of footmen
+     * @param cols number of enemies
+     */
+    public void reset(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+
+        int pairs = rows * cols;
+        if (pairs > capacity) {
+            capacity = Math.max(pairs, capacity * 2);
+            block = new double[capacity * numFeatures];
+            qValues = new double[capacity];
+        }
+        if (cols > rowValues.length) {
+            rowValues = new double[cols];
+        }
+        scored = false;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * Stores one feature of a footman against every enemy. The values are contiguous in the block.
+     * @param row     the footman
+     * @param feature the feature
+     * @param values  the feature for each enemy, cols long
+     */
+    public void setFeatureRow(int row, int feature, double[] values) {
+        System.arraycopy(values, 0, block, feature * capacity + row * cols, cols);
+        scored = false;
+    }
+
+    /**
+     * Copies the feature vector of a pair into out.
+     * @param row the footman
+     * @param col the enemy
+     * @param out array of at least numFeatures to copy into
+     * @return out
+     */
+    public double[] getFeatures(int row, int col, double[] out) {
+        int pair = row * cols + col;
+        for (int k = 0; k < numFeatures; k++) {
+            out[k] = block[k * capacity + pair];
+        }
+        return out;
+    }
+
+    /**
+     * Computes the Q-value of every pair unless they are already up to date for these weights.
+     * @param weights the Q-function weights
+     */
+    public void score(double[] weights) {
+        if (scored && Arrays.equals(scoredWeights, weights)) {
+            return;
+        }
+
+        int pairs = rows * cols;
+        if (VECTOR_KERNEL) {
+            scoreVector(weights, pairs);
+        } else {
+            scoreScalar(weights, pairs);
+        }
+
+        System.arraycopy(weights, 0, scoredWeights, 0, numFeatures);
+        scored = true;
+    }
+
+    private void scoreVector(double[] weights, int pairs) {
+        Arrays.fill(qValues, 0, pairs, 0);
+        for (int k = 0; k < numFeatures; k++) {
+            double weight = weights[k];
+            int base = k * capacity;
+            for (int p = 0; p < pairs; p++) {
+                qValues[p] += weight * block[base + p];
+            }
+        }
+    }
+
+    private void scoreScalar(double[] weights, int pairs) {
+        for (int p = 0; p < pairs; p++) {
+            double q = 0;
+            for (int k = 0; k < numFeatures; k++) {
+                q += weights[k] * block[k * capacity + p];
+            }
+            qValues[p] = q;
+        }
+    }
+
+    /**
+     * Computes the highest Q-value of one row with the given weights without touching the scored
+     * matrix. Used while the weights are changing between footmen.
+     * @param row     the footman
+     * @param weights the Q-function weights
+     * @return the highest Q-value in the row
+     */
+    public double max(int row, double[] weights) {
+        int start = row * cols;
+        Arrays.fill(rowValues, 0, cols, 0);
+        for (int k = 0; k < numFeatures; k++) {
+            double weight = weights[k];
+            int base = k * capacity + start;
+            for (int col = 0; col < cols; col++) {
+                rowValues[col] += weight * block[base + col];
+            }
+        }
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int col = 0; col < cols; col++) {
+            if (rowValues[col] > max) {
+                max = rowValues[col];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the Q-value of a pair as of the last call to score
+     */
+    public double getQValue(int row, int col) {
+        return qValues[row * cols + col];
+    }
+
+    /**
+     * @param row the footman
+     * @return the column of the highest Q-value in the row, the first one on ties
+     */
+    public int argmax(int row) {
+        int start = row * cols;
+        int best = 0;
+        double bestValue = Double.NEGATIVE_INFINITY;
+
+        for (int col = 0; col < cols; col++) {
+            if (qValues[start + col] > bestValue) {
+                bestValue = qValues[start + col];
+                best = col;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param row the footman
+     * @return the highest Q-value in the row
+     */
+    public double max(int row) {
+        return qValues[row * cols + argmax(row)];
+    }
+}
@@ -4,8 +4,6 @@ import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.action.ActionFeedback;
 import edu.cwru.sepia.action.ActionResult;
 import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
@@ -13,6 +11,9 @@ import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 public class RLAgent extends Agent {
 
@@ -23,6 +24,17 @@ public class RLAgent extends Agent {
      */
     public final int numEpisodes;
 
+    /**
+     * True when a trainer in this JVM drives the agent, see RLTrainer. A managed agent never calls
+     * System.exit, does not print its progress and does not write weight files.
+     */
+    private final boolean managed;
+
+    /**
+     * The XML arguments, kept so a serialized agent is created again the same way. null for a managed agent.
+     */
+    private final String[] args;
+
     private int currentEpisode;
     private int episodesTested;
     private int episodesEvaluated;
@@ -30,11 +42,48 @@ public class RLAgent extends Agent {
     private int episodesWon;
 
     /**
-     * List of your footmen and your enemies footmen
+     * Your footmen and your enemies footmen
+     */
+    private UnitRoster myFootmen = new UnitRoster();
+    private UnitRoster enemyFootmen = new UnitRoster();
+
+    /**
+     * Targets of every unfinished attack on both sides this turn
+     */
+    private EngagementIndex engagements = new EngagementIndex();
+
+    /**
+     * Run with -Drlagent.verifyEngagements=true to rebuild the engagement index from scratch every turn
+     * and fail if the incremental one differs
+     */
+    public static final boolean VERIFY_ENGAGEMENTS = Boolean.getBoolean("rlagent.verifyEngagements");
+    private final EngagementIndex rebuiltEngagements = VERIFY_ENGAGEMENTS ? new EngagementIndex() : null;
+
+    /**
+     * Which footmen choose a new target on an event turn
      */
-    private List<Integer> myFootmen;
-    private List<Integer> enemyFootmen;
-    private List<Action> currentActions;
+    private ReplanScheduler scheduler = new ReplanScheduler();
+
+    /**
+     * Solves the joint target assignment when assignmentCapacity is set
+     */
+    private TargetAssigner assigner = new TargetAssigner();
+
+    /**
+     * The actions middleStep returns, cleared and refilled every turn so a turn allocates no map or action
+     */
+    private final ActionMap actions = new ActionMap();
+
+    /**
+     * Closest enemy of each footman and the weakest enemy this turn
+     */
+    private TacticalSnapshot tactics = new TacticalSnapshot();
+
+    /**
+     * Damage and deaths of the previous turn per unit, shared by the rewards, the event check and
+     * removing dead footmen
+     */
+    private TurnDigest digest = new TurnDigest();
 
     /**
      * Convenience variable specifying enemy agent number. Use this whenever referring
@@ -43,50 +92,186 @@ public class RLAgent extends Agent {
     public static final int ENEMY_PLAYERNUM = 1;
 
     /**
-     * Set this to whatever size your feature vector is.
+     * The size of the default feature vector, see FeatureRegistry.defaults.
      */
     public static final int NUM_FEATURES = 7;
-    public static final int NUM_ATTACKING_FOOTMEN_FEATURE = 1;
-    public static final int BEING_ATTACKED_FEATURE = 2;
-    public static final int CLOSEST_ENEMY_FEATURE = 3;
-    public static final int HEALTH_FEATURE = 4;
-    public static final int WEAKEST_ENEMY_FEATURE = 5;
-    public static final int VICTIM_HEALTH_FEATURE = 6;
+
+    /**
+     * The features of the Q-function and the length of the weight vector. Only the per-turn aggregates
+     * the active features read are computed, plus the ones the replan scheduler needs.
+     */
+    private final FeatureRegistry features;
+    private final int numFeatures;
+    private final FeatureContext featureContext = new FeatureContext(myFootmen, enemyFootmen, engagements, tactics);
+    private int aggregates;
 
     /** Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
+     * The seed is Hyperparameters.seed, 12345 by default.
      */
-    public final Random random = new Random(12345);
+    public final SplitRandom random;
 
     /**
      * Your Q-function weights.
      */
     public double[] weights;
     private double[] bestWeights;
-    private String[] featureNames = {"constant", "footmen attacking", "being attacked", "closest enemy",
-                                     "health", "weakest enemy", "victim health"};
+
+    /**
+     * Set when several agents train the same weights in parallel, see ParallelTrainer
+     */
+    private SharedWeights sharedWeights;
+
+    /**
+     * Past transitions replayed in mini-batches after every learning event, null when replay is off.
+     * With background replay a batch runs on replayWorker and its change to the weights is applied
+     * at the next event.
+     */
+    private ReplayBuffer replayBuffer;
+    private ReplayWorker replayWorker;
+    private SplitRandom replayRandom;
+    private double[] nextFeatureScratch;
+
+    /**
+     * The weights a replay batch is written into, or the change of a background batch is added to,
+     * swapped with the weights after every batch
+     */
+    private double[] replayWeights;
+
+    /**
+     * Binary checkpoints of the latest and best weights, written in the background after every episode.
+     * The text files of saveWeights and saveBestWeights are only written once, when the program ends.
+     */
+    public static final String CHECKPOINT_PATH = "agent_weights/weights.ckpt";
+    public static final String BEST_CHECKPOINT_PATH = "agent_weights/bestweights.ckpt";
+    private WeightCheckpointer checkpoints;
+    private WeightCheckpointer bestCheckpoints;
+
+    /**
+     * The whole training state, see savePlayerData, written in the background every
+     * TRAINING_STATE_INTERVAL episodes (-Drlagent.stateInterval=N, at least 1), whenever the best weights
+     * improve and after the last episode. Encoding it grows with the replay buffer and the least-squares
+     * transitions, so it is not done every episode.
+     * Starting with -Drlagent.resume=agent_weights/training.state carries on from it.
+     */
+    public static final String TRAINING_STATE_PATH = "agent_weights/training.state";
+    public static final int TRAINING_STATE_INTERVAL = Integer.getInteger("rlagent.stateInterval", 50);
+    public static final String RESUME_PATH = System.getProperty("rlagent.resume");
+    public static final int TRAINING_STATE_MAGIC = 0x524C5354;
+    public static final int TRAINING_STATE_VERSION = 2;
+    private SnapshotWriter trainingState;
+
+    /**
+     * The transitions collected for least-squares policy iteration, null in online learning mode
+     */
+    private LstdqLearner leastSquares;
+
+    /**
+     * Records every transition learned from for offline learning, null when not recording
+     */
+    private TraceRecorder traceRecorder;
 
     // Rewards
-    private List<Double> allRewards        = new ArrayList<>();
-    private List<Double> currentRewards    = new ArrayList<>();
-    private List<Double> averageRewards    = new ArrayList<>();
-    private List<Double> evaluationRewards = new ArrayList<>();
+    private double episodeReward;
+    private int episodeEvents;
+    private double evaluationRewardSum;
     private double bestReward = 0;
 
-    private Map<Integer, Double[]> previousFeatureValues = new HashMap<>();
+    /**
+     * Average reward of every evaluation round, one value per round for printTestData
+     */
+    private List<Double> averageRewards = new ArrayList<>();
+
+    /**
+     * Cumulative reward of every episode. Only a managed agent keeps these, for its TrainingResult.
+     */
+    private double[] episodeRewards = new double[16];
+    private int episodeRewardCount;
+
+    /**
+     * Per episode results streamed to results.csv, null for a managed agent unless a trainer sets one
+     */
+    public static final String METRICS_PATH = "results.csv";
+    public static final int METRICS_WINDOW = 100;
+    private MetricsSink metrics;
 
     /**
-     * These variables are set for you according to the assignment definition. You can change them,
-     * but it is not recommended. If you do change them please let us know and explain your reasoning for
-     * changing them.
+     * Phase timings, only created when profiling is switched on, see TurnProfiler
      */
-    public final double gamma = 0.9;
-    public final double learningRate = .0001;
-    public final double epsilon = .02;
+    private final TurnProfiler profiler = TurnProfiler.ENABLED ? new TurnProfiler() : null;
+
+    /**
+     * Features of the attack each footman is doing and its eligibility trace, numFeatures values per
+     * unit ID starting at unitId * numFeatures
+     */
+    private double[] previousFeatures = new double[0];
+    private boolean[] hasPreviousFeatures = new boolean[0];
+    private double[] traces = new double[0];
+
+    /**
+     * Weight change of one learning step, reused
+     */
+    private double[] weightChange;
+
+    /**
+     * Feature vectors and Q-values for every footman/enemy pair on the current turn, indexed
+     * by footman slot and enemy slot. The features are built at most once per turn.
+     */
+    private QValueEngine qValues;
+    private int featureCacheTurn = -1;
+    private int tacticsTurn = -1;
+    private double[] featureScratch;
+
+    /**
+     * One feature of a footman against every enemy, and the Q-values of a footman against every enemy
+     */
+    private double[] rowScratch = new double[0];
+    private double[] rowValues = new double[0];
+
+    /**
+     * These variables are set according to the assignment definition unless other hyperparameters
+     * are given, see Hyperparameters.
+     */
+    public final Hyperparameters hyperparameters;
+
+    /**
+     * Playing trained weights without learning: no rewards, no exploration and no feature cache, every
+     * decision only scores the enemies of the footman deciding. See Hyperparameters.LearningMode.INFERENCE.
+     */
+    private final boolean inference;
+    public final double gamma;
+    public final double learningRate;
+    public final double epsilon;
 
     public RLAgent(int playernum, String[] args) {
+        this(playernum, args, null);
+    }
+
+    /**
+     * @param savedState a training state to carry on from as if resumed from it, or null, see SerializedAgent
+     */
+    private RLAgent(int playernum, String[] args, byte[] savedState) {
         super(playernum);
 
+        managed = false;
+        this.args = args.clone();
+        if (TRAINING_STATE_INTERVAL < 1) {
+            // SEPIA only reports that it could not create the agent, not why
+            String message = "rlagent.stateInterval must be at least 1 but is " + TRAINING_STATE_INTERVAL;
+            System.err.println(message);
+            throw new IllegalArgumentException(message);
+        }
+
+        Hyperparameters parameters = Hyperparameters.defaults();
+        for (int i = 2; i < args.length; i++) {
+            parameters = parameters.withArgument(args[i]);
+        }
+        hyperparameters = parameters;
+        random = new SplitRandom(parameters.seed);
+        gamma = parameters.gamma;
+        learningRate = parameters.learningRate;
+        epsilon = parameters.epsilon;
+
         if (args.length >= 1) {
             numEpisodes = Integer.parseInt(args[0]);
             System.out.println("Running " + numEpisodes + " episodes.");
@@ -102,15 +287,110 @@ public class RLAgent extends Agent {
             System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
         }
 
-        if (loadWeights) {
-            weights = loadWeights();
-        } else {
-            // initialize weights to random values between -1 and 1
-            weights = new double[NUM_FEATURES];
-            for (int i = 0; i < weights.length; i++) {
-                weights[i] = random.nextDouble() * 2 - 1;
+        inference = parameters.learningMode == Hyperparameters.LearningMode.INFERENCE;
+        features = FeatureRegistry.defaults();
+        numFeatures = features.size();
+        setupFeatureBuffers();
+
+        // a frozen policy is only worth playing with trained weights, a resumed run gets them from its state
+        boolean resumed = savedState != null || RESUME_PATH != null;
+        weights = (loadWeights || inference) && !resumed ? loadLatestWeights() : randomWeights();
+        if (weights == null || weights.length != numFeatures) {
+            throw new IllegalStateException("No weights for " + numFeatures + " features to load from agent_weights");
+        }
+        setupReplay();
+        if (hyperparameters.learningMode == Hyperparameters.LearningMode.LSTDQ) {
+            leastSquares = new LstdqLearner(numFeatures);
+        }
+
+        episodesWon = 0;
+        currentEpisode = 1;
+        episodesTested = 1;
+        testingEpisode = true;
+        episodesEvaluated = 0;
+
+        if (savedState != null) {
+            try {
+                readTrainingState(new ByteArrayInputStream(savedState));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to restore the serialized agent. Reason: " + ex.getMessage(), ex);
+            }
+        } else if (RESUME_PATH != null) {
+            try (InputStream input = new FileInputStream(RESUME_PATH)) {
+                readTrainingState(input);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to resume from " + RESUME_PATH + ". Reason: " + ex.getMessage(), ex);
             }
         }
+        if (resumed) {
+            System.out.println("Resuming at episode " + currentEpisode + ".");
+        }
+
+        try {
+            // a resumed run keeps the lines of the episodes its state has and drops the ones played after it
+            metrics = new MetricsSink(METRICS_PATH, METRICS_WINDOW, 5, resumed ? currentEpisode - 1 : 0);
+        } catch (IOException ex) {
+            System.err.println("Failed to open " + METRICS_PATH + ". Reason: " + ex.getMessage());
+        }
+        setupCheckpoints();
+
+        if (TraceRecorder.PATH != null) {
+            try {
+                traceRecorder = new TraceRecorder(new File(TraceRecorder.PATH).toPath(), numFeatures);
+            } catch (IOException ex) {
+                System.err.println("Failed to open trace " + TraceRecorder.PATH + ". Reason: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates an agent driven by a trainer in this JVM rather than by an XML config.
+     * @param playernum       the player this agent controls
+     * @param numEpisodes     the number of episodes the trainer will run
+     * @param hyperparameters the learning parameters
+     * @param initialWeights  the weights to start from, copied, or null for random weights
+     */
+    public RLAgent(int playernum, int numEpisodes, Hyperparameters hyperparameters, double[] initialWeights) {
+        this(playernum, numEpisodes, hyperparameters, initialWeights, FeatureRegistry.defaults());
+    }
+
+    /**
+     * Creates an agent driven by a trainer that learns with its own set of features.
+     * @param playernum       the player this agent controls
+     * @param numEpisodes     the number of episodes the trainer will run
+     * @param hyperparameters the learning parameters
+     * @param initialWeights  the weights to start from, one per feature, copied, or null for random weights
+     * @param features        the features of the Q-function, used by this agent only
+     */
+    public RLAgent(int playernum, int numEpisodes, Hyperparameters hyperparameters, double[] initialWeights,
+                   FeatureRegistry features) {
+        super(playernum);
+
+        this.managed = true;
+        this.args = null;
+        this.numEpisodes = numEpisodes;
+        this.hyperparameters = hyperparameters;
+        random = new SplitRandom(hyperparameters.seed);
+        gamma = hyperparameters.gamma;
+        learningRate = hyperparameters.learningRate;
+        epsilon = hyperparameters.epsilon;
+
+        inference = hyperparameters.learningMode == Hyperparameters.LearningMode.INFERENCE;
+        if (inference && initialWeights == null) {
+            throw new IllegalArgumentException("Inference mode needs initial weights");
+        }
+        if (initialWeights != null && initialWeights.length != features.size()) {
+            throw new IllegalArgumentException("Expected " + features.size() + " initial weights but got " + initialWeights.length);
+        }
+        this.features = features;
+        numFeatures = features.size();
+        setupFeatureBuffers();
+
+        weights = initialWeights != null ? initialWeights.clone() : randomWeights();
+        setupReplay();
+        if (hyperparameters.learningMode == Hyperparameters.LearningMode.LSTDQ) {
+            leastSquares = new LstdqLearner(numFeatures);
+        }
 
         episodesWon = 0;
         currentEpisode = 1;
@@ -119,38 +399,141 @@ public class RLAgent extends Agent {
         episodesEvaluated = 0;
     }
 
+    /**
+     * Creates the buffers that hold a feature vector.
+     */
+    private void setupFeatureBuffers() {
+        nextFeatureScratch = new double[numFeatures];
+        weightChange = new double[numFeatures];
+        featureScratch = new double[numFeatures];
+        qValues = new QValueEngine(numFeatures);
+    }
+
+    /**
+     * @return weights with random values between -1 and 1
+     */
+    private double[] randomWeights() {
+        double[] randomWeights = new double[numFeatures];
+        for (int i = 0; i < randomWeights.length; i++) {
+            randomWeights[i] = random.nextDouble() * 2 - 1;
+        }
+        return randomWeights;
+    }
+
+    /**
+     * Starts the checkpoint writers and makes sure the last weights and metrics are on disk however the
+     * program ends.
+     */
+    private void setupCheckpoints() {
+        checkpoints = new WeightCheckpointer(new File(CHECKPOINT_PATH).toPath());
+        bestCheckpoints = new WeightCheckpointer(new File(BEST_CHECKPOINT_PATH).toPath());
+        trainingState = new SnapshotWriter(new File(TRAINING_STATE_PATH).toPath());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (metrics != null) {
+                    metrics.close();
+                }
+                trainingState.close();
+                if (traceRecorder != null) {
+                    traceRecorder.close();
+                }
+
+                // a frozen policy has nothing new to save. The checkpoints are written after the text
+                // files so loadLatestWeights finds the lossless checkpoint at least as new.
+                if (!inference) {
+                    saveWeights(weights);
+                    checkpoints.save(weights);
+                    if (bestWeights != null) {
+                        saveBestWeights(bestWeights);
+                        bestCheckpoints.save(bestWeights);
+                    }
+                }
+                checkpoints.close();
+                bestCheckpoints.close();
+
+                if (TurnProfiler.ENABLED) {
+                    profiler.writeReport(TurnProfiler.REPORT_PATH);
+                }
+            }
+        }, "save-weights"));
+    }
+
+    /**
+     * Loads the binary checkpoint if it is at least as new as agent_weights/weights.txt, otherwise the
+     * text weights. At exit the checkpoint is written last, so the text file is only newer when something
+     * else wrote it, e.g. ParallelTrainer.
+     * @return The array of weights
+     */
+    private double[] loadLatestWeights() {
+        File checkpoint = new File(CHECKPOINT_PATH);
+        File text = new File("agent_weights/weights.txt");
+
+        if (checkpoint.exists() && checkpoint.lastModified() >= text.lastModified()) {
+            try {
+                return WeightCheckpointer.read(checkpoint.toPath());
+            } catch (IOException ex) {
+                System.err.println("Failed to load weight checkpoint, trying weights.txt. Reason: " + ex.getMessage());
+            }
+        }
+
+        return loadWeights();
+    }
+
+    /**
+     * Creates the replay buffer and the background replay thread if the hyperparameters ask for them.
+     */
+    private void setupReplay() {
+        if (hyperparameters.replayCapacity == 0) {
+            return;
+        }
+
+        replayBuffer = new ReplayBuffer(hyperparameters.replayCapacity, numFeatures, hyperparameters.replayPriority);
+        replayWeights = new double[numFeatures];
+        // its own generator because the background thread cannot share the agent's
+        replayRandom = random.split();
+
+        if (hyperparameters.replayBackground) {
+            replayWorker = new ReplayWorker(numFeatures, replayRandom, "replay-" + playernum);
+        }
+    }
+
     /**
      * We've implemented some setup code for your convenience. Change what you need to.
      */
     @Override
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+        long profileStart = TurnProfiler.ENABLED ? System.nanoTime() : 0;
 
         // System.out.printf("episode %4d is a %10s episode\n", currentEpisode, testingEpisode ? "testing" : "evaluation");
         // You will need to add code to check if you are in a testing or learning episode
-        if (episodesTested > 9) {
+        if (inference) {
+            testingEpisode = false;
+        } else if (episodesTested >= hyperparameters.trainingEpisodes) {
             testingEpisode = false;
             episodesTested = 0;
-        } else if (episodesEvaluated > 4) {
+
+            // a round of training episodes is over, solve for the weights of its policy
+            if (leastSquares != null) {
+                solveLeastSquares();
+            }
+        } else if (episodesEvaluated >= hyperparameters.evaluationEpisodes) {
             testingEpisode = true;
             episodesEvaluated = 0;
         }
 
-        // we have run all the episodes
-        if (currentEpisode >= numEpisodes) {
+        // we have run all the episodes, a trainer decides this for itself
+        if (!managed && currentEpisode >= numEpisodes) {
             printTestData(averageRewards);
             System.out.printf("Finished running... \nwon %.2f of games\nexiting\n", ((double) episodesWon / (double) numEpisodes) * 100);
 
-            try {
-                saveToCSV();
-            } catch (Exception e) {
-                System.out.println(":(");
-            }
-
+            // the shutdown hook closes results.csv and writes the weights
             System.exit(0);
         }
 
         // Find all of your units
-        myFootmen = new LinkedList<>();
+        myFootmen.clear();
         for (Integer unitId : stateView.getUnitIds(playernum)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -163,7 +546,7 @@ public class RLAgent extends Agent {
         }
 
         // Find all of the enemy units
-        enemyFootmen = new LinkedList<>();
+        enemyFootmen.clear();
         for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -175,7 +558,31 @@ public class RLAgent extends Agent {
             }
         }
 
-        currentRewards = new ArrayList<>();
+        episodeReward = 0;
+        episodeEvents = 0;
+
+        // turn numbers restart every episode so the caches from the last episode are stale
+        featureCacheTurn = -1;
+        tacticsTurn = -1;
+        digest.invalidate();
+
+        // a frozen policy skips the features its weights ignore, learning needs them all
+        if (inference) {
+            features.activate(weights, hyperparameters.featureThreshold);
+        } else {
+            features.activateAll();
+        }
+        aggregates = features.getAggregates() | (hyperparameters.replanThreshold > 0 ? ReplanScheduler.AGGREGATES : 0);
+
+        // attacks, plans and traces do not carry over from the last episode
+        engagements.clear();
+        scheduler.reset();
+        Arrays.fill(hasPreviousFeatures, false);
+        Arrays.fill(traces, 0);
+
+        if (TurnProfiler.ENABLED) {
+            profiler.record(TurnProfiler.Phase.INITIAL_STEP, profileStart);
+        }
 
         return middleStep(stateView, historyView);
     }
@@ -204,63 +611,203 @@ public class RLAgent extends Agent {
      *     System.out.println(result.toString());
      * }
      *
-     * @return New actions to execute or nothing if an event has not occurred.
+     * @return New actions to execute or nothing if an event has not occurred. The map is reused by the next turn.
      */
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+        long stepStart = TurnProfiler.ENABLED ? System.nanoTime() : 0;
+        long phaseStart = stepStart;
 
         // update the footmen and actions
         updateFootmenList(myFootmen, stateView, historyView);
         updateFootmenList(enemyFootmen, stateView, historyView);
+        myFootmen.snapshot(stateView);
+        enemyFootmen.snapshot(stateView);
+        if (TurnProfiler.ENABLED) {
+            phaseStart = profiler.record(TurnProfiler.Phase.UPDATE_FOOTMEN, phaseStart);
+        }
+
         updateActions(stateView, historyView);
-        Map<Integer, Action> actions = new HashMap<>();
+        actions.clear();
+        if (TurnProfiler.ENABLED) {
+            phaseStart = profiler.record(TurnProfiler.Phase.UPDATE_ACTIONS, phaseStart);
+        }
+
+        boolean event = eventOccured(stateView, historyView);
+        if (TurnProfiler.ENABLED) {
+            phaseStart = profiler.record(TurnProfiler.Phase.EVENT_CHECK, phaseStart);
+            profiler.countTurn(event);
+        }
 
-        if (eventOccured(stateView, historyView)) {
+        if (event && !inference) {
 
             // calculate the rewards
             double reward = 0;
-            for (int footmanID : myFootmen) {
-                reward += calculateReward(stateView, historyView, footmanID);
+            for (int i = 0; i < myFootmen.size(); i++) {
+                reward += calculateReward(stateView, historyView, myFootmen.getId(i));
+            }
+            episodeReward += reward;
+            episodeEvents++;
+            if (TurnProfiler.ENABLED) {
+                phaseStart = profiler.record(TurnProfiler.Phase.REWARDS, phaseStart);
             }
-            currentRewards.add(reward);
 
             // if we are in a testing episode then update the policy
             if (testingEpisode) {
-                for (int footmanID : myFootmen) {
-                    double[] featureValues = convertToPrimitiveArray(previousFeatureValues.get(footmanID));
-                    weights = updateWeights(weights, featureValues, reward, stateView, historyView, footmanID);
+                if (traceRecorder != null) {
+                    recordTransitions(stateView, historyView, reward);
+                }
+
+                if (leastSquares != null) {
+                    collectTransitions(stateView, historyView, reward);
+                } else {
+                    learn(stateView, historyView, reward);
+                }
+                if (TurnProfiler.ENABLED) {
+                    phaseStart = profiler.record(TurnProfiler.Phase.WEIGHT_UPDATE, phaseStart);
+                }
+
+                if (replayBuffer != null && leastSquares == null) {
+                    storeTransitions(stateView, historyView, reward);
+                    replay();
+                    if (TurnProfiler.ENABLED) {
+                        phaseStart = profiler.record(TurnProfiler.Phase.REPLAY, phaseStart);
+                    }
                 }
             }
 
-            // All footmen get a new action
-            for (int footmanID : myFootmen) {
-                Action action = Action.createCompoundAttack(footmanID, selectAction(stateView, historyView, footmanID));
-                actions.put(footmanID, action);
+        }
+
+        if (event) {
+
+            // footmen whose situation changed get a new action, the rest keep attacking
+            if (inference) {
+                updateTacticalSnapshot(stateView);
+            } else {
+                updateFeatureCache(stateView, historyView);
             }
+            scheduler.update(myFootmen, enemyFootmen, digest, tactics, engagements, hyperparameters.replanThreshold);
+
+            if (hyperparameters.assignmentCapacity > 0) {
+                planJointly(stateView, historyView, actions);
+            } else {
+                for (int i = 0; i < myFootmen.size(); i++) {
+                    int footmanID = myFootmen.getId(i);
+                    if (scheduler.needsReplan(footmanID)) {
+                        plan(stateView, historyView, footmanID, actions);
+                    } else if (!inference) {
+                        // the next update needs the features of the attack it keeps in this state
+                        setPreviousFeatures(footmanID, getFeatureVector(stateView, historyView, footmanID, scheduler.getTarget(footmanID)));
+                    }
+                }
+            }
+            scheduler.finishTurn(tactics);
 
         } else if (stateView.getTurnNumber() == 0) {
             // First turn give everyone an action
 
-            for (int footmanID : myFootmen) {
-                Action action = Action.createCompoundAttack(footmanID, selectAction(stateView, historyView, footmanID));
-                actions.put(footmanID, action);
+            if (hyperparameters.assignmentCapacity > 0) {
+                planJointly(stateView, historyView, actions);
+            } else {
+                for (int i = 0; i < myFootmen.size(); i++) {
+                    plan(stateView, historyView, myFootmen.getId(i), actions);
+                }
             }
+            scheduler.finishTurn(tactics);
 
         } else {
             // No event occured so find lazy footmen and put them to work
-            Map<Integer, ActionResult> actionResults = historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-
-            for(ActionResult result : actionResults.values()) {
-                int unitID = result.getAction().getUnitId();
-                if (result.getFeedback().equals(ActionFeedback.COMPLETED) && myFootmen.contains(unitID)) {
-                    Action action = Action.createCompoundAttack(unitID, selectAction(stateView, historyView, unitID));
-                    actions.put(unitID, action);
+            for (int i = 0; i < digest.getCompletedCount(); i++) {
+                int unitID = digest.getCompleted(i);
+                if (myFootmen.contains(unitID)) {
+                    plan(stateView, historyView, unitID, actions);
                 }
             }
         }
+
+        if (TurnProfiler.ENABLED) {
+            profiler.record(TurnProfiler.Phase.SELECT_ACTIONS, phaseStart);
+            profiler.record(TurnProfiler.Phase.MIDDLE_STEP, stepStart);
+            profiler.countDecisions(actions.size());
+        }
         return actions;
     }
 
+    /**
+     * Gives a footman a new attack and remembers it in the replan scheduler.
+     * @param stateView   Current state of the game
+     * @param historyView History of the game up until this point
+     * @param footmanID   the footman
+     * @param actions     the actions of this turn, the attack is added to it
+     */
+    private void plan(State.StateView stateView, History.HistoryView historyView, int footmanID, ActionMap actions) {
+        int target;
+        if (inference) {
+            updateTacticalSnapshot(stateView);
+            target = greedyTarget(footmanID);
+        } else {
+            // the scheduler reads this turn's closest enemies even when the attack is random
+            updateFeatureCache(stateView, historyView);
+            target = selectAction(stateView, historyView, footmanID);
+        }
+
+        actions.putCompoundAttack(footmanID, target);
+        scheduler.planned(footmanID, target, tactics, engagements);
+    }
+
+    /**
+     * Gives every footman the replan scheduler picked a new attack in one joint assignment. The Q-values
+     * of every pair are scored once, exploring footmen attack a random enemy as in selectAction, and the
+     * rest are assigned by the target assigner with at most assignmentCapacity footmen on an enemy,
+     * counting the footmen that keep their target.
+     * @param stateView   Current state of the game
+     * @param historyView History of the game up until this point
+     * @param actions     the actions of this turn, the attacks are added to it
+     */
+    private void planJointly(State.StateView stateView, History.HistoryView historyView, ActionMap actions) {
+        updateFeatureCache(stateView, historyView);
+        qValues.score(weights);
+        assigner.reset(enemyFootmen.size(), hyperparameters.assignmentCapacity);
+
+        for (int i = 0; i < myFootmen.size(); i++) {
+            int footmanID = myFootmen.getId(i);
+
+            if (!scheduler.needsReplan(footmanID)) {
+                int target = scheduler.getTarget(footmanID);
+                if (enemyFootmen.contains(target)) {
+                    assigner.occupy(enemyFootmen.slotOf(target));
+                }
+                if (!inference) {
+                    setPreviousFeatures(footmanID, getFeatureVector(stateView, historyView, footmanID, target));
+                }
+            } else if (!inference && random.nextDouble() < epsilon) {
+                int victimIndex = random.nextInt(enemyFootmen.size());
+                assigner.occupy(victimIndex);
+                assignTarget(stateView, historyView, footmanID, enemyFootmen.getId(victimIndex), actions);
+            } else {
+                assigner.addFootman(i);
+            }
+        }
+
+        assigner.solve(qValues);
+        for (int k = 0; k < assigner.size(); k++) {
+            int footmanID = myFootmen.getId(assigner.getRow(k));
+            assignTarget(stateView, historyView, footmanID, enemyFootmen.getId(assigner.getTarget(k)), actions);
+        }
+    }
+
+    /**
+     * Gives a footman an attack chosen by the joint assignment.
+     */
+    private void assignTarget(State.StateView stateView, History.HistoryView historyView, int footmanID, int target,
+                              ActionMap actions) {
+        if (!inference) {
+            setPreviousFeatures(footmanID, getFeatureVector(stateView, historyView, footmanID, target));
+        }
+        actions.putCompoundAttack(footmanID, target);
+        scheduler.planned(footmanID, target, tactics, engagements);
+    }
+
     /**
      * Here you will calculate the cumulative average rewards for your testing episodes. If you have just
      * finished a set of test episodes you will call out testEpisode.
@@ -269,47 +816,275 @@ public class RLAgent extends Agent {
      */
     @Override
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+        long profileStart = TurnProfiler.ENABLED ? System.nanoTime() : 0;
+
+        currentEpisode++;
+        double sumRewards = episodeReward;
+        boolean stateSaved = false;
+
+        boolean won = stateView.getUnits(0).size() > stateView.getUnits(1).size();
+        if (won) {
+            episodesWon++;
+        }
+
+        if (managed) {
+            if (episodeRewardCount == episodeRewards.length) {
+                episodeRewards = Arrays.copyOf(episodeRewards, episodeRewards.length * 2);
+            }
+            episodeRewards[episodeRewardCount++] = sumRewards;
+        }
+
+        if (metrics != null) {
+            metrics.record(currentEpisode - 1, testingEpisode, sumRewards, won, stateView.getTurnNumber(), episodeEvents);
+        }
+
+        if (testingEpisode) {
+            episodesTested++;
+        } else if (!inference) {
+            episodesEvaluated++;
+
+            // if we are evaluating then add the reward to the evaluation average
+            evaluationRewardSum += sumRewards;
+
+            if (episodesEvaluated >= hyperparameters.evaluationEpisodes) {
+                averageRewards.add(evaluationRewardSum / episodesEvaluated);
+                evaluationRewardSum = 0;
+
+                /*
+                System.out.println();
+                for (int i = 0; i < weights.length; i++) {
+                    System.out.printf("%-17s: %f\n", features.getName(i), weights[i]);
+                }
+                System.out.println();
+                */
+
+                if (averageRewards.get(averageRewards.size() - 1) > bestReward) {
+                    bestReward = averageRewards.get(averageRewards.size() - 1);
+                    bestWeights = weights.clone();
+                    // the state goes first so a crash never leaves a best checkpoint newer than the state
+                    if (!managed) {
+                        saveTrainingState();
+                        stateSaved = true;
+                        bestCheckpoints.save(bestWeights);
+                    }
+                }
+            }
+        }
+
+        // a trainer reports and saves for itself
+        if (!managed) {
+            System.out.printf("won %d out of %d games: %.2f%s, last %d: %.2f%s                \r",
+                    episodesWon,  currentEpisode, ((double) episodesWon / (double) currentEpisode) * 100, "%",
+                    METRICS_WINDOW, metrics != null ? metrics.getWinRate() * 100 : 0, "%");
+
+            if (!inference) {
+                checkpoints.save(weights);
+
+                // the last episode is saved too, the next initialStep exits
+                if (!stateSaved && ((currentEpisode - 1) % TRAINING_STATE_INTERVAL == 0 || currentEpisode >= numEpisodes)) {
+                    saveTrainingState();
+                }
+            }
+        }
+
+        if (TurnProfiler.ENABLED) {
+            profiler.record(TurnProfiler.Phase.TERMINAL_STEP, profileStart);
+        }
+    }
+
+    /**
+     * Hands the whole training state to the background writer, see savePlayerData.
+     */
+    private void saveTrainingState() {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        savePlayerData(snapshot);
+        trainingState.save(snapshot.toByteArray());
+    }
+
+    /**
+     * Replaces the weights with updated weights, through the shared weights if there are any.
+     * @param newWeights the updated weights
+     */
+    private void applyUpdate(double[] newWeights) {
+        weights = sharedWeights != null ? sharedWeights.update(weights, newWeights) : newWeights;
+    }
+
+    /**
+     * Keeps the transition of every footman for least-squares policy iteration, like recordTransitions.
+     * @param stateView   Current state of the game.
+     * @param historyView History of the game up until this point
+     * @param reward      the reward of the event, shared by all footmen
+     */
+    private void collectTransitions(State.StateView stateView, History.HistoryView historyView, double reward) {
+        updateFeatureCache(stateView, historyView);
+
+        for (int i = 0; i < myFootmen.size(); i++) {
+            int footmanId = myFootmen.getId(i);
+            if (!hasPreviousFeatures(footmanId)) {
+                continue;
+            }
+
+            // each footman's own reward, the shared one leaves least squares nothing to tell the choices apart
+            leastSquares.addTransition(previousFeatures, footmanId * numFeatures,
+                    calculateReward(stateView, historyView, footmanId));
+            for (int j = 0; j < enemyFootmen.size(); j++) {
+                leastSquares.addCandidate(qValues.getFeatures(i, j, featureScratch));
+            }
+        }
+    }
+
+    /**
+     * Ends the round of transitions and replaces the weights with the least-squares solution for the
+     * transitions of the last lspiRounds rounds.
+     */
+    private void solveLeastSquares() {
+        leastSquares.endRound(hyperparameters.lspiRounds);
+        try {
+            applyUpdate(leastSquares.solve(weights, gamma, hyperparameters.lspiIterations));
+        } catch (IllegalStateException ex) {
+            System.err.println("Keeping the old weights. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Records the transition of every footman to the trace: the features of the attack it was doing, the
+     * reward of this event and the features of every attack it could make now.
+     * @param stateView   Current state of the game.
+     * @param historyView History of the game up until this point
+     * @param reward      the reward of the event, shared by all footmen
+     */
+    private void recordTransitions(State.StateView stateView, History.HistoryView historyView, double reward) {
+        updateFeatureCache(stateView, historyView);
+
+        for (int i = 0; i < myFootmen.size(); i++) {
+            int footmanId = myFootmen.getId(i);
+            if (!hasPreviousFeatures(footmanId)) {
+                continue;
+            }
+
+            traceRecorder.beginTransition(currentEpisode, stateView.getTurnNumber(), footmanId, reward,
+                    previousFeatures, footmanId * numFeatures);
+            for (int j = 0; j < enemyFootmen.size(); j++) {
+                traceRecorder.addCandidate(qValues.getFeatures(i, j, featureScratch));
+            }
+        }
+    }
+
+    /**
+     * Adds the transition of every footman to the replay buffer: the features of the attack it was
+     * doing, the reward of this event and the features of its best attack now.
+     * @param stateView   Current state of the game.
+     * @param historyView History of the game up until this point
+     * @param reward      the reward of this event
+     */
+    private void storeTransitions(State.StateView stateView, History.HistoryView historyView, double reward) {
+        if (enemyFootmen.isEmpty()) {
+            return;
+        }
+
+        updateFeatureCache(stateView, historyView);
+        qValues.score(weights);
+
+        for (int i = 0; i < myFootmen.size(); i++) {
+            int footmanId = myFootmen.getId(i);
+            if (!hasPreviousFeatures(footmanId)) {
+                continue;
+            }
+
+            qValues.getFeatures(i, qValues.argmax(i), nextFeatureScratch);
+            replayBuffer.add(previousFeatures, footmanId * numFeatures, reward, nextFeatureScratch);
+        }
+    }
+
+    /**
+     * Learns from one mini-batch of past transitions. In the background the batch runs on a copy of the
+     * weights and what it changed is added to the weights once it is done.
+     */
+    private void replay() {
+        final int batchSize = hyperparameters.replayBatchSize;
+        if (replayBuffer.size() < batchSize) {
+            return;
+        }
+
+        if (replayWorker == null) {
+            double[] oldWeights = weights;
+            applyUpdate(replayBuffer.replay(weights, replayWeights, batchSize, learningRate, gamma, replayRandom));
+            // the old weights take the next batch
+            replayWeights = oldWeights;
+            return;
+        }
 
-        currentEpisode++;
-        double sumRewards = sum(currentRewards);
-        allRewards.add(sumRewards);
+        if (replayWorker.isRunning()) {
+            return;
+        }
 
-        if (stateView.getUnits(0).size() > stateView.getUnits(1).size()) {
-            episodesWon++;
+        System.arraycopy(weights, 0, replayWeights, 0, numFeatures);
+        if (replayWorker.collect(replayWeights)) {
+            double[] oldWeights = weights;
+            applyUpdate(replayWeights);
+            replayWeights = oldWeights;
         }
+        replayWorker.start(replayBuffer, weights, batchSize, learningRate, gamma);
+    }
 
-        if (testingEpisode) {
-            episodesTested++;
-        } else {
-            episodesEvaluated++;
+    /**
+     * Makes this agent learn on weights shared with other agents running at the same time.
+     * @param sharedWeights the shared weight vector
+     */
+    public void setSharedWeights(SharedWeights sharedWeights) {
+        this.sharedWeights = sharedWeights;
+        weights = sharedWeights.snapshot();
+    }
+
+    /**
+     * Streams the results of every episode to the given sink, see MetricsSink.
+     * @param metrics the sink, null to stop recording
+     */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
 
-            // if we are evaluating then add the average to evaluation rewards
-            evaluationRewards.add(sumRewards);
+    /**
+     * Records every transition learned from to a trace. The caller closes the recorder.
+     * @param traceRecorder the recorder or null to stop recording
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
 
-            if (episodesEvaluated > 4) {
-                averageRewards.add(average(evaluationRewards));
-                evaluationRewards = new ArrayList<>();
+    /**
+     * @return the phase timings, null unless profiling is switched on
+     */
+    public TurnProfiler getProfiler() {
+        return profiler;
+    }
 
-                /*
-                System.out.println();
-                for (int i = 0; i < weights.length; i++) {
-                    System.out.printf("%-17s: %f\n", featureNames[i], weights[i]);
-                }
-                System.out.println();
-                */
+    public int getEpisodesWon() {
+        return episodesWon;
+    }
 
-                if (averageRewards.get(averageRewards.size() - 1) > bestReward) {
-                    bestReward = averageRewards.get(averageRewards.size() - 1);
-                    bestWeights = weights;
-                    saveBestWeights(bestWeights);
-                }
-            }
+    /**
+     * @return everything this agent has learned so far
+     */
+    public TrainingResult getTrainingResult() {
+        double[] evaluations = new double[averageRewards.size()];
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i] = averageRewards.get(i);
         }
 
-        System.out.printf("won %d out of %d games: %.2f%s                            \r",
-                episodesWon,  currentEpisode, ((double) episodesWon / (double) currentEpisode) * 100, "%");
+        return new TrainingResult(hyperparameters, currentEpisode - 1, episodesWon,
+                Arrays.copyOf(episodeRewards, episodeRewardCount), evaluations,
+                weights.clone(), bestWeights != null ? bestWeights.clone() : null, bestReward);
+    }
 
-        saveWeights(weights);
+    /**
+     * Stops the background replay thread. A trainer calls this once it is done with a managed agent, an
+     * agent SEPIA runs on its own lives until the JVM exits.
+     */
+    public void close() {
+        if (replayWorker != null) {
+            replayWorker.close();
+        }
     }
 
     /**
@@ -329,34 +1104,127 @@ public class RLAgent extends Agent {
                                   History.HistoryView historyView,
                                   int footmanId) {
 
-        double[] newWeights = new double[oldWeights.length];
+        double[] newWeights = oldWeights.clone();
 
-        for (int i = 0; i < newWeights.length; i++) {
-            double oldQValue =  dotProduct(oldWeights, oldFeatures);
-            double currentQValue = findMaxQValue(stateView, historyView, footmanId);
+        // the TD error is the same for every weight so it is computed once
+        double oldQValue = dotProduct(oldWeights, oldFeatures, 0);
+        double currentQValue = findMaxQValue(stateView, historyView, footmanId);
+        double step = learningRate * (totalReward + (gamma * currentQValue) - oldQValue);
 
-            newWeights[i] = oldWeights[i] + learningRate * (totalReward + (gamma * currentQValue) - oldQValue) * oldFeatures[i];
+        for (int i = 0; i < newWeights.length; i++) {
+            newWeights[i] += step * oldFeatures[i];
         }
 
         return newWeights;
     }
 
+    /**
+     * Updates the weights in place from the event that just happened, one TD(lambda) step per footman.
+     * Every footman's eligibility trace is decayed by gamma * lambda and the features of its last attack
+     * are added to it, then the weights move by learningRate * TD error along the trace. With lambda = 0
+     * this is exactly the update of updateWeights.
+     *
+     * Normally the footmen are updated one after another, each seeing the weights the previous one left.
+     * With batchUpdates every TD error is computed with the weights from before the event and the sum of
+     * all changes is applied at the end.
+     *
+     * @param stateView   Current state of the game.
+     * @param historyView History of the game up until this point
+     * @param reward      the reward of the event, shared by all footmen
+     */
+    public void learn(State.StateView stateView, History.HistoryView historyView, double reward) {
+        updateFeatureCache(stateView, historyView);
+
+        boolean batch = hyperparameters.batchUpdates;
+        double decay = gamma * hyperparameters.lambda;
+        if (batch) {
+            Arrays.fill(weightChange, 0);
+        }
+
+        for (int i = 0; i < myFootmen.size(); i++) {
+            int footmanId = myFootmen.getId(i);
+            if (!hasPreviousFeatures(footmanId)) {
+                continue;
+            }
+            int offset = footmanId * numFeatures;
+
+            double oldQValue = dotProduct(weights, previousFeatures, offset);
+            double currentQValue = enemyFootmen.isEmpty() ? 0 : Math.max(0, qValues.max(i, weights));
+            double step = learningRate * (reward + (gamma * currentQValue) - oldQValue);
+
+            for (int k = 0; k < numFeatures; k++) {
+                traces[offset + k] = decay * traces[offset + k] + previousFeatures[offset + k];
+            }
+
+            if (batch) {
+                for (int k = 0; k < numFeatures; k++) {
+                    weightChange[k] += step * traces[offset + k];
+                }
+            } else if (sharedWeights != null) {
+                for (int k = 0; k < numFeatures; k++) {
+                    weightChange[k] = step * traces[offset + k];
+                    weights[k] += weightChange[k];
+                }
+                sharedWeights.apply(weightChange, weights);
+            } else {
+                for (int k = 0; k < numFeatures; k++) {
+                    weights[k] += step * traces[offset + k];
+                }
+            }
+        }
+
+        if (batch) {
+            for (int k = 0; k < numFeatures; k++) {
+                weights[k] += weightChange[k];
+            }
+            if (sharedWeights != null) {
+                sharedWeights.apply(weightChange, weights);
+            }
+        }
+    }
+
     /**
      * Calculates the dot product of weights and features.
      * @param weights the weight vector
-     * @param features the feature vector
+     * @param features array holding the feature vector
+     * @param offset where the feature vector starts
      * @return the dot product
      */
-    private double dotProduct(double[] weights, double[] features) {
+    private double dotProduct(double[] weights, double[] features, int offset) {
         double product = 0;
 
         for (int i = 0; i < weights.length; i++) {
-            product += (weights[i] * features[i]);
+            product += (weights[i] * features[offset + i]);
         }
 
         return product;
     }
 
+    /**
+     * @param footmanId a friendly footman
+     * @return whether the footman has chosen an attack this episode
+     */
+    private boolean hasPreviousFeatures(int footmanId) {
+        return footmanId < hasPreviousFeatures.length && hasPreviousFeatures[footmanId];
+    }
+
+    /**
+     * Remembers the features of the attack a footman chose.
+     * @param footmanId the footman
+     * @param features  the features of its attack
+     */
+    private void setPreviousFeatures(int footmanId, double[] features) {
+        if (footmanId >= hasPreviousFeatures.length) {
+            int size = Math.max(footmanId + 1, hasPreviousFeatures.length * 2);
+            hasPreviousFeatures = Arrays.copyOf(hasPreviousFeatures, size);
+            previousFeatures = Arrays.copyOf(previousFeatures, size * numFeatures);
+            traces = Arrays.copyOf(traces, size * numFeatures);
+        }
+
+        System.arraycopy(features, 0, previousFeatures, footmanId * numFeatures, numFeatures);
+        hasPreviousFeatures[footmanId] = true;
+    }
+
     /**
      * Finds the maximum Q value for all enemy ids
      * @param stateView Current state of the game.
@@ -365,16 +1233,15 @@ public class RLAgent extends Agent {
      * @return the maximum Q value.
      */
     private double findMaxQValue(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-        double maxQValue = 0;
+        updateFeatureCache(stateView, historyView);
 
-        for (int enemyId : enemyFootmen) {
-            double newQValue = calcQValue(stateView, historyView, footmanId, enemyId);
-            if (newQValue > maxQValue) {
-                maxQValue = newQValue;
-            }
+        int footman = myFootmen.slotOf(footmanId);
+        if (footman == UnitRoster.NO_SLOT || enemyFootmen.isEmpty()) {
+            return 0;
         }
 
-        return maxQValue;
+        // the weights change between footmen during an update so only this row is scored
+        return Math.max(0, qValues.max(footman, weights));
     }
 
     /**
@@ -388,35 +1255,72 @@ public class RLAgent extends Agent {
      */
     public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
 
-        int victim = enemyFootmen.get(0);
+        int victim = enemyFootmen.getId(0);
 
         if (random.nextDouble() < epsilon) {
             // do random stuff
-            int victimIndex = (int)(Math.random() * enemyFootmen.size());
-            victim = enemyFootmen.get(victimIndex);
+            int victimIndex = random.nextInt(enemyFootmen.size());
+            victim = enemyFootmen.getId(victimIndex);
 
         } else {
 
-            double maxQVal = Integer.MIN_VALUE;
+            // score every pair at once and pick the enemy with the highest Q-value
+            updateFeatureCache(stateView, historyView);
+            qValues.score(weights);
+            victim = enemyFootmen.getId(qValues.argmax(myFootmen.slotOf(attackerId)));
 
-            // loop through all of the enemy footmen and figure out which one to attack
-            for (int enemyID : enemyFootmen) {
+        }
 
-                double newQVal = calcQValue(stateView, historyView, attackerId, enemyID);
-                if (newQVal > maxQVal) {
-                    victim  = enemyID;
-                    maxQVal = newQVal;
-                }
-            }
+        setPreviousFeatures(attackerId, getFeatureVector(stateView, historyView, attackerId,  victim));
+
+        return victim;
+    }
 
+    /**
+     * The decision of inference mode: the enemy with the highest Q-value, scoring only this footman's
+     * enemies and allocating nothing. Picks the same enemy as the greedy choice in selectAction.
+     * @param attackerId the footman that will be attacking
+     * @return the enemy footman ID this unit should attack
+     */
+    private int greedyTarget(int attackerId) {
+        int count = enemyFootmen.size();
+        ensureRowScratch(count);
+        Arrays.fill(rowValues, 0, count, 0);
+
+        // adding the terms in feature order gives the same Q-values as the cache
+        for (int k = 0; k < numFeatures; k++) {
+            if (!features.isActive(k)) {
+                continue;
+            }
+            features.compute(k, featureContext, attackerId, enemyFootmen.ids(), count, rowScratch);
+            double weight = weights[k];
+            for (int j = 0; j < count; j++) {
+                rowValues[j] += weight * rowScratch[j];
+            }
         }
 
-        double[] featureVector = calculateFeatureVector(stateView, historyView, attackerId,  victim);
-        previousFeatureValues.put(attackerId, convertToObjectArray(featureVector));
+        if (TurnProfiler.ENABLED) {
+            profiler.countFeatures(features.getActiveCount() * count);
+        }
 
+        int victim = enemyFootmen.getId(0);
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < count; j++) {
+            if (rowValues[j] > bestValue) {
+                bestValue = rowValues[j];
+                victim = enemyFootmen.getId(j);
+            }
+        }
         return victim;
     }
 
+    private void ensureRowScratch(int count) {
+        if (rowScratch.length < count) {
+            rowScratch = new double[count];
+            rowValues = new double[count];
+        }
+    }
+
     /**
      * Given the current state and the footman in question calculate the reward received on the last turn.
      * This is where you will check for things like Did this footman take or give damage? Did this footman die
@@ -451,45 +1355,9 @@ public class RLAgent extends Agent {
      * @return The current reward
      */
     public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-        double reward = -0.1;
-
-        for (DamageLog damageLogs : historyView.getDamageLogs(stateView.getTurnNumber() - 1)) {
-            // Footman is being attacked
-            if (footmanId == damageLogs.getDefenderID()) {
-                if (footmanDied(stateView, historyView, footmanId)) {
-                    reward -= 100;
-                }
-
-                reward -= damageLogs.getDamage();
-            }
-
-            // Footman is attacking
-            if (footmanId == damageLogs.getAttackerID()) {
-                if (footmanDied(stateView, historyView, damageLogs.getDefenderID())) {
-                    reward += 100;
-                }
-
-                reward += damageLogs.getDamage();
-            }
-        }
-
-        return reward;
-    }
-
-    /**
-     * Returns whether the given footman died.
-     * @param stateView The current state of the game.
-     * @param historyView History of the episode up until this turn.
-     * @param footmanId The footman ID you are looking for the reward from.
-     * @return true if the footman died
-     */
-    private boolean footmanDied(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-        for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() - 1)) {
-            if (footmanId == deathLog.getDeadUnitID()) {
-                return true;
-            }
-        }
-        return false;
+        // the logs are summed up once per turn, see TurnDigest.getReward
+        digest.update(stateView.getTurnNumber(), historyView);
+        return digest.getReward(footmanId);
     }
 
     /**
@@ -510,116 +1378,142 @@ public class RLAgent extends Agent {
                              History.HistoryView historyView,
                              int attackerId,
                              int defenderId) {
-        double [] features = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
-        return dotProduct(weights, features);
+        updateFeatureCache(stateView, historyView);
+
+        int footman = myFootmen.slotOf(attackerId);
+        int enemy = enemyFootmen.slotOf(defenderId);
+        if (footman == UnitRoster.NO_SLOT || enemy == UnitRoster.NO_SLOT) {
+            return dotProduct(weights, calculateFeatureVector(stateView, historyView, attackerId, defenderId), 0);
+        }
+
+        qValues.score(weights);
+        return qValues.getQValue(footman, enemy);
     }
 
     /**
-     * Features Description
-     * NUM_ATTACKING_FOOTMEN: the number of footment attacking the victim
-     * BEING_ATTACKED: If this footman is being attacked by the victim
-     * CLOSEST_ENEMY: If this enemy is the closest
-     * HEALTH: difference in health between the units
-     * WEAKEST_ENEMY: If this is the enemy with the least health
+     * Returns the feature vector for the given pair from the per-turn feature cache. The cache is
+     * rebuilt whenever the turn number changes. The returned array is reused by the next call.
      *
      * @param stateView   Current state of the SEPIA game
      * @param historyView History of the game up until this turn
      * @param attackerId  Your footman. The one doing the attacking.
      * @param defenderId  An enemy footman. The one you are considering attacking.
-     * @return            The array of feature function outputs.
+     * @return            The cached feature vector
      */
-    public double[] calculateFeatureVector(State.StateView stateView,
-                                           History.HistoryView historyView,
-                                           int attackerId,
-                                           int defenderId) {
-
-        double[] featureVector = new double[NUM_FEATURES];
-        featureVector[0] = .1;
+    private double[] getFeatureVector(State.StateView stateView,
+                                      History.HistoryView historyView,
+                                      int attackerId,
+                                      int defenderId) {
+        updateFeatureCache(stateView, historyView);
+
+        int footman = myFootmen.slotOf(attackerId);
+        int enemy = enemyFootmen.slotOf(defenderId);
+        if (footman == UnitRoster.NO_SLOT || enemy == UnitRoster.NO_SLOT) {
+            // not a live pair this turn, nothing cached for it
+            return calculateFeatureVector(stateView, historyView, attackerId, defenderId);
+        }
 
-        for (Action action : currentActions) {
-            if (action instanceof TargetedAction) {
-                TargetedAction targeted = (TargetedAction) action;
+        return qValues.getFeatures(footman, enemy, featureScratch);
+    }
 
-                // how many other footmen are attacking e?
-                if (targeted.getTargetId() == defenderId) {
-                    featureVector[NUM_ATTACKING_FOOTMEN_FEATURE]+=2;
-                }
+    /**
+     * Fills the feature cache with the feature vector of every footman/enemy pair if it has
+     * not been built for this turn yet.
+     *
+     * @param stateView   Current state of the SEPIA game
+     * @param historyView History of the game up until this turn
+     */
+    private void updateFeatureCache(State.StateView stateView, History.HistoryView historyView) {
+        if (featureCacheTurn == stateView.getTurnNumber()) {
+            return;
+        }
 
-                // is e attacking me?
-                if (targeted.getUnitId() == defenderId && targeted.getTargetId() == attackerId) {
-                    featureVector[BEING_ATTACKED_FEATURE]++;
-                }
+        updateTacticalSnapshot(stateView);
 
-                // health of the enemies victim
-                if (targeted.getUnitId() == defenderId) {
-                    UnitView victim = stateView.getUnit(targeted.getTargetId());
-                    if (victim != null) {
-                        featureVector[VICTIM_HEALTH_FEATURE] = stateView.getUnit(targeted.getTargetId()).getHP();
-                    }
-                }
+        qValues.reset(myFootmen.size(), enemyFootmen.size());
 
+        ensureRowScratch(enemyFootmen.size());
+        for (int i = 0; i < myFootmen.size(); i++) {
+            for (int k = 0; k < numFeatures; k++) {
+                features.compute(k, featureContext, myFootmen.getId(i), enemyFootmen.ids(), enemyFootmen.size(), rowScratch);
+                qValues.setFeatureRow(i, k, rowScratch);
             }
         }
-
-        // is e the closest enemy?
-        if (defenderId == getClosestEnemy(attackerId, stateView)) {
-            featureVector[CLOSEST_ENEMY_FEATURE] += 10;
+        if (TurnProfiler.ENABLED) {
+            profiler.countFeatures(numFeatures * myFootmen.size() * enemyFootmen.size());
         }
 
-        // how much health do i have?
-        featureVector[HEALTH_FEATURE] = (stateView.getUnit(attackerId).getHP() - stateView.getUnit(defenderId).getHP());
+        featureCacheTurn = stateView.getTurnNumber();
+    }
+
+    /**
+     * Rebuilds the closest and weakest enemy tables from the current unit positions and health, the ones
+     * some active feature or the replan scheduler reads.
+     * @param stateView Current state of the SEPIA game
+     */
+    private void updateTacticalSnapshot(State.StateView stateView) {
+        if (tacticsTurn == stateView.getTurnNumber()) {
+            return;
+        }
 
-        // weakest one
-        if (defenderId == getWeakestEnemy(stateView)) {
-            featureVector[WEAKEST_ENEMY_FEATURE]++;
+        if ((aggregates & FeatureRegistry.NEAREST_ENEMIES) != 0) {
+            tactics.setEnemies(enemyFootmen.ids(), enemyFootmen.xs(), enemyFootmen.ys(), enemyFootmen.size(),
+                    stateView.getXExtent(), stateView.getYExtent());
+            tactics.setFootmen(myFootmen.ids(), myFootmen.xs(), myFootmen.ys(), myFootmen.size());
+        }
+        if ((aggregates & FeatureRegistry.HEALTH_RANK) != 0) {
+            tactics.setWeakest(enemyFootmen.ids(), enemyFootmen.hps(), enemyFootmen.size());
         }
 
-        return featureVector;
+        tacticsTurn = stateView.getTurnNumber();
     }
 
     /**
-     * Removes any footmen based on death.
-     * @param footmen     the footmen list being updated
-     * @param stateView   the current state
-     * @param historyView the history
+     * Features Description, see FeatureRegistry for how they are computed
+     * NUM_ATTACKING_FOOTMEN: the number of footment attacking the victim
+     * BEING_ATTACKED: If this footman is being attacked by the victim
+     * CLOSEST_ENEMY: If this enemy is the closest
+     * HEALTH: difference in health between the units
+     * WEAKEST_ENEMY: If this is the enemy with the least health
+     *
+     * @param stateView   Current state of the SEPIA game
+     * @param historyView History of the game up until this turn
+     * @param attackerId  Your footman. The one doing the attacking.
+     * @param defenderId  An enemy footman. The one you are considering attacking.
+     * @return            The array of feature function outputs.
      */
-    private void updateFootmenList(List<Integer> footmen, State.StateView stateView, History.HistoryView historyView) {
+    public double[] calculateFeatureVector(State.StateView stateView,
+                                           History.HistoryView historyView,
+                                           int attackerId,
+                                           int defenderId) {
 
-        for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() - 1)) {
-            if (footmen.contains(deathLog.getDeadUnitID())) {
-                for (int i = 0; i < footmen.size(); i++) {
-                    if (footmen.get(i) == deathLog.getDeadUnitID()) {
-                        footmen.remove(i);
-                    }
-                }
-            }
-        }
+        return computeFeatureVector(attackerId, defenderId, new double[numFeatures]);
     }
 
     /**
-     * Converts double array to Double array
-     * @param array the double array
-     * @return the Double array
+     * Fills the given array with the features of a pair. See calculateFeatureVector.
+     *
+     * @param attackerId    Your footman. The one doing the attacking.
+     * @param defenderId    An enemy footman. The one you are considering attacking.
+     * @param featureVector The array to fill, numFeatures long, 0 for the features that are not active
+     * @return              featureVector
      */
-    private Double[] convertToObjectArray(double[] array) {
-        Double[] newArray = new Double[array.length];
-        for (int i = 0; i < array.length; i++) {
-            newArray[i] = array[i];
-        }
-        return newArray;
+    private double[] computeFeatureVector(int attackerId, int defenderId, double[] featureVector) {
+        return features.compute(featureContext, attackerId, defenderId, featureVector);
     }
 
     /**
-     * Converts Double array to double array
-     * @param array the Double array
-     * @return the double array
+     * Removes any footmen based on death.
+     * @param footmen     the footmen list being updated
+     * @param stateView   the current state
+     * @param historyView the history
      */
-    private double[] convertToPrimitiveArray(Double[] array) {
-        double[] newArray = new double[array.length];
-        for (int i = 0; i < array.length; i++) {
-            newArray[i] = array[i];
+    private void updateFootmenList(UnitRoster footmen, State.StateView stateView, History.HistoryView historyView) {
+
+        digest.update(stateView.getTurnNumber(), historyView);
+        for (int i = 0; i < digest.getDeathCount(); i++) {
+            footmen.remove(digest.getDeath(i));
         }
-        return newArray;
     }
 
     /**
@@ -759,14 +1653,16 @@ public class RLAgent extends Agent {
      */
     public boolean eventOccured(State.StateView stateView, History.HistoryView historyView) {
 
+        digest.update(stateView.getTurnNumber(), historyView);
+
         // unit is killed
-        if (historyView.getDeathLogs(stateView.getTurnNumber() - 1).size() > 0) {
+        if (digest.getDeathCount() > 0) {
             return true;
         }
 
         // friendly unit is hit
-        for (DamageLog damage : historyView.getDamageLogs(stateView.getTurnNumber() - 1)) {
-            if (myFootmen.contains(damage.getDefenderID())) {
+        for (int i = 0; i < digest.getHitCount(); i++) {
+            if (myFootmen.contains(digest.getDefender(i))) {
                 return true;
             }
         }
@@ -775,127 +1671,334 @@ public class RLAgent extends Agent {
     }
 
     /**
-     * updates the list of actions we are maintaining
+     * Updates the index of attacks we are maintaining with what changed on the last turn. Attacks that
+     * failed and units that died the turn before are dropped, and every unit whose feedback shows a new
+     * target, a completed attack or another command is updated. Units still attacking the same target
+     * are left alone. Our commands that completed or failed are noted in the turn digest on the way.
      * @param stateView   the current state
      * @param historyView the history
      */
     public void updateActions(State.StateView stateView, History.HistoryView historyView) {
+        int lastTurn = stateView.getTurnNumber() - 1;
 
-        currentActions = new ArrayList<>();
+        digest.update(stateView.getTurnNumber(), historyView);
 
-        Map<Integer, ActionResult> myActionResults = historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-        Map<Integer, ActionResult> enemyActionResults = historyView.getCommandFeedback(ENEMY_PLAYERNUM, stateView.getTurnNumber() - 1);
+        // nothing reads who is attacking whom this episode, only the finished commands are needed
+        boolean trackEngagements = (aggregates & FeatureRegistry.ENGAGEMENTS) != 0;
+        if (trackEngagements) {
+            engagements.releasePending();
+        }
 
+        Map<Integer, ActionResult> myActionResults = historyView.getCommandFeedback(playernum, lastTurn);
         for (ActionResult result : myActionResults.values()) {
-            if (!result.getFeedback().equals(ActionFeedback.COMPLETED)) {
-                currentActions.add(result.getAction());
+            digest.addFeedback(result);
+            if (trackEngagements) {
+                applyFeedback(engagements, result);
             }
         }
 
+        if (!trackEngagements) {
+            return;
+        }
+
+        Map<Integer, ActionResult> enemyActionResults = historyView.getCommandFeedback(ENEMY_PLAYERNUM, lastTurn);
+
         for (ActionResult result : enemyActionResults.values()) {
-            if (!result.getFeedback().equals(ActionFeedback.COMPLETED)) {
-                currentActions.add(result.getAction());
+            applyFeedback(engagements, result);
+        }
+
+        // a unit that died still has feedback on the turn it died, so its attack counts one more turn
+        for (int i = 0; i < digest.getDeathCount(); i++) {
+            int unitId = digest.getDeath(i);
+            if (myActionResults.containsKey(unitId) || enemyActionResults.containsKey(unitId)) {
+                engagements.releaseNextUpdate(unitId);
+            } else {
+                engagements.release(unitId);
             }
         }
+
+        if (VERIFY_ENGAGEMENTS) {
+            verifyEngagements(myActionResults, enemyActionResults);
+        }
     }
 
     /**
-     * returns the closest enemyID to the given footman
-     * @param footman     the footman we are looking from
-     * @param stateView   the current state
-     * @return the ID of the closest enemy
+     * Applies the feedback of one unit's command to an engagement index
+     * @param index  the index to update
+     * @param result the feedback for the unit's command
      */
-    private int getClosestEnemy(int footman, State.StateView stateView) {
-
-        int closestEnemy = enemyFootmen.get(0);
-        int closestDistance = 10000;
-        int enemyDistance;
+    private static void applyFeedback(EngagementIndex index, ActionResult result) {
+        int unitId = result.getAction().getUnitId();
+        if (result.getFeedback().equals(ActionFeedback.COMPLETED) || !(result.getAction() instanceof TargetedAction)) {
+            index.release(unitId);
+            return;
+        }
 
-        for (int enemy : enemyFootmen) {
-            enemyDistance = chebyshev(stateView.getUnit(footman), stateView.getUnit(enemy));
-            if (enemyDistance < closestDistance) {
-                closestDistance = enemyDistance;
-                closestEnemy = enemy;
-            }
+        index.assign(unitId, ((TargetedAction) result.getAction()).getTargetId());
+        if (result.getFeedback().equals(ActionFeedback.FAILED)) {
+            index.releaseNextUpdate(unitId);
         }
-        return closestEnemy;
     }
 
     /**
-     * returns the id of the weakest enemy
-     * @param stateView the state
-     * @return the id of the weakest enemy
+     * Rebuilds the engagement index from all of the last turn's feedback, the way it was done before it
+     * was incremental, and compares it with the incremental one.
+     * @throws IllegalStateException if they differ
      */
-    private int getWeakestEnemy(State.StateView stateView) {
+    private void verifyEngagements(Map<Integer, ActionResult> myActionResults, Map<Integer, ActionResult> enemyActionResults) {
+        rebuiltEngagements.clear();
 
-        int weakestHealth = Integer.MAX_VALUE;
-        int weakEnemy = enemyFootmen.get(0);
+        for (ActionResult result : myActionResults.values()) {
+            if (!result.getFeedback().equals(ActionFeedback.COMPLETED) && result.getAction() instanceof TargetedAction) {
+                applyFeedback(rebuiltEngagements, result);
+            }
+        }
 
-        for (int enemyID : enemyFootmen) {
-            int enemyHealth = stateView.getUnit(enemyID).getHP();
-            if (enemyHealth < weakestHealth) {
-                weakestHealth = enemyHealth;
-                weakEnemy = enemyID;
+        for (ActionResult result : enemyActionResults.values()) {
+            if (!result.getFeedback().equals(ActionFeedback.COMPLETED) && result.getAction() instanceof TargetedAction) {
+                applyFeedback(rebuiltEngagements, result);
             }
         }
 
-        return weakEnemy;
+        engagements.verify(rebuiltEngagements);
     }
 
     /**
-     * Calculates the average of a list of doubles
-     * @param numbers the list of doubles
-     * @return the average
+     * Saves everything a run needs to carry on where it is: the episode counters and the schedule of
+     * learning and evaluation episodes, the rewards so far, the weights and the best weights, the state
+     * of the random number generators and the replay buffer or least-squares transitions. Only call it
+     * between episodes, nothing of an episode in progress is saved. A replay batch still running in the
+     * background is not saved either.
+     *
+     * Format, big endian: int magic "RLST", int version, int number of features, the fields in the order
+     * writeTrainingState writes them, long CRC32 of everything before it.
      */
-    private double average(List<Double> numbers) {
-        double average = 0;
-
-        for (double num : numbers) {
-            average += num;
+    @Override
+    public void savePlayerData(OutputStream outputStream) {
+        try {
+            writeTrainingState(outputStream);
+        } catch (IOException ex) {
+            System.err.println("Failed to save the training state. Reason: " + ex.getMessage());
         }
-        return average / numbers.size();
     }
 
     /**
-     * sums a list of doubles
-     * @param numbers the numbers to sum
-     * @return the sum of the numbers
+     * Restores the state saved by savePlayerData. The agent must have the same features and the same
+     * replay and learning mode settings. Nothing changes if the state cannot be read.
      */
-    private double sum(List<Double> numbers) {
-        double sum = 0;
+    @Override
+    public void loadPlayerData(InputStream inputStream) {
+        try {
+            readTrainingState(inputStream);
+        } catch (IOException ex) {
+            System.err.println("Failed to load the training state. Reason: " + ex.getMessage());
+        }
+    }
 
-        for (double num : numbers) {
-            sum += num;
+    /**
+     * SEPIA saves agents with Java serialization when experiment.SaveAgents is set. The agent holds
+     * threads, open files and caches that cannot be serialized, so a SerializedAgent with its arguments
+     * and its training state is written instead. The same rules as for savePlayerData apply.
+     * @return the object to serialize in place of this agent
+     * @throws NotSerializableException for a managed agent, its trainer keeps it
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (managed) {
+            throw new NotSerializableException("A managed agent is not serialized, save its TrainingResult instead");
         }
 
-        return sum;
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        try {
+            writeTrainingState(state);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return new SerializedAgent(playernum, args, state.toByteArray());
     }
 
     /**
-     * Saves the rewards to a .csv file
-     * @throws IOException if there is a problem writing
+     * An agent is only ever written as a SerializedAgent, a stream with the agent itself is not one of ours.
      */
-    private void saveToCSV() throws IOException {
-        FileWriter fileWriter = new FileWriter("results.csv");
-        fileWriter.write("iteration, cumulative reward\n");
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("An RLAgent is read through SerializedAgent");
+    }
+
+    private void writeTrainingState(OutputStream outputStream) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(outputStream);
+        CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        out.writeInt(TRAINING_STATE_MAGIC);
+        out.writeInt(TRAINING_STATE_VERSION);
+        out.writeInt(numFeatures);
+
+        out.writeInt(currentEpisode);
+        out.writeInt(episodesTested);
+        out.writeInt(episodesEvaluated);
+        out.writeBoolean(testingEpisode);
+        out.writeInt(episodesWon);
+        out.writeDouble(evaluationRewardSum);
+        out.writeDouble(bestReward);
+
+        out.writeLong(random.getState());
+        out.writeBoolean(replayRandom != null);
+        if (replayRandom != null) {
+            out.writeLong(replayRandom.getState());
+        }
+
+        for (double weight : weights) {
+            out.writeDouble(weight);
+        }
+        out.writeBoolean(bestWeights != null);
+        if (bestWeights != null) {
+            for (double weight : bestWeights) {
+                out.writeDouble(weight);
+            }
+        }
+
+        out.writeInt(averageRewards.size());
+        for (double reward : averageRewards) {
+            out.writeDouble(reward);
+        }
+        out.writeInt(episodeRewardCount);
+        for (int i = 0; i < episodeRewardCount; i++) {
+            out.writeDouble(episodeRewards[i]);
+        }
 
-        int i = 0;
-        for (double reward : allRewards) {
-            i++;
-            fileWriter.write(String.format("%d, %.5f\n", i, reward));
+        out.writeBoolean(replayBuffer != null);
+        if (replayBuffer != null) {
+            replayBuffer.write(out);
+        }
+        out.writeBoolean(leastSquares != null);
+        if (leastSquares != null) {
+            leastSquares.write(out);
         }
 
-        fileWriter.flush();
-        fileWriter.close();
+        // the checksum goes around the checked stream so it does not cover itself
+        new DataOutputStream(buffered).writeLong(checked.getChecksum().getValue());
+        buffered.flush();
     }
 
-    @Override
-    public void savePlayerData(OutputStream outputStream) {
+    private void readTrainingState(InputStream inputStream) throws IOException {
+        // the checked stream must not read ahead into the checksum, so the buffering is below it
+        BufferedInputStream buffered = new BufferedInputStream(inputStream);
+        CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        if (in.readInt() != TRAINING_STATE_MAGIC) {
+            throw new IOException("Not a training state");
+        }
+        int version = in.readInt();
+        if (version != TRAINING_STATE_VERSION) {
+            throw new IOException("Unsupported training state version " + version);
+        }
+        int savedFeatures = in.readInt();
+        if (savedFeatures != numFeatures) {
+            throw new IOException("Expected " + numFeatures + " features but the state has " + savedFeatures);
+        }
+
+        // read into locals so a bad state changes nothing
+        int savedEpisode = in.readInt();
+        int savedTested = in.readInt();
+        int savedEvaluated = in.readInt();
+        boolean savedTesting = in.readBoolean();
+        int savedWon = in.readInt();
+        double savedEvaluationSum = in.readDouble();
+        double savedBestReward = in.readDouble();
+
+        long randomState = in.readLong();
+        boolean hasReplayRandom = in.readBoolean();
+        long replayRandomState = hasReplayRandom ? in.readLong() : 0;
+
+        double[] savedWeights = readDoubles(in, numFeatures);
+        double[] savedBestWeights = in.readBoolean() ? readDoubles(in, numFeatures) : null;
+
+        double[] savedAverages = readDoubles(in, in.readInt());
+        double[] savedEpisodeRewards = readDoubles(in, in.readInt());
+
+        ReplayBuffer savedReplay = in.readBoolean() ? ReplayBuffer.read(in) : null;
+        if ((savedReplay != null) != (replayBuffer != null) || hasReplayRandom != (replayRandom != null)) {
+            throw new IOException("The state was saved with experience replay " + (savedReplay != null ? "on" : "off"));
+        }
+        LstdqLearner savedLeastSquares = in.readBoolean() ? LstdqLearner.read(in) : null;
+        if ((savedLeastSquares != null) != (leastSquares != null)) {
+            throw new IOException("The state was saved in a different learning mode");
+        }
+
+        long checksum = checked.getChecksum().getValue();
+        if (new DataInputStream(buffered).readLong() != checksum) {
+            throw new IOException("The training state failed its checksum");
+        }
+
+        currentEpisode = savedEpisode;
+        episodesTested = savedTested;
+        episodesEvaluated = savedEvaluated;
+        testingEpisode = savedTesting;
+        episodesWon = savedWon;
+        evaluationRewardSum = savedEvaluationSum;
+        bestReward = savedBestReward;
+
+        random.restore(randomState);
+        if (replayRandom != null) {
+            replayRandom.restore(replayRandomState);
+        }
+
+        weights = savedWeights;
+        bestWeights = savedBestWeights;
+
+        averageRewards = new ArrayList<>();
+        for (double reward : savedAverages) {
+            averageRewards.add(reward);
+        }
+        episodeRewards = Arrays.copyOf(savedEpisodeRewards, Math.max(16, savedEpisodeRewards.length));
+        episodeRewardCount = savedEpisodeRewards.length;
+
+        if (savedReplay != null) {
+            replayBuffer = savedReplay;
+        }
+        if (savedLeastSquares != null) {
+            leastSquares = savedLeastSquares;
+        }
+    }
 
+    private static double[] readDoubles(DataInputStream in, int count) throws IOException {
+        if (count < 0) {
+            throw new IOException("Invalid training state");
+        }
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
     }
 
-    @Override
-    public void loadPlayerData(InputStream inputStream) {
+    /**
+     * What a serialized agent is written as. Reading it creates the agent again from its XML arguments
+     * and carries on from its training state, like -Drlagent.resume does, so it opens its files and
+     * starts its threads as usual.
+     */
+    private static class SerializedAgent implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int playernum;
+        private final String[] args;
+        private final byte[] trainingState;
+
+        SerializedAgent(int playernum, String[] args, byte[] trainingState) {
+            this.playernum = playernum;
+            this.args = args;
+            this.trainingState = trainingState;
+        }
 
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return new RLAgent(playernum, args, trainingState);
+            } catch (IllegalStateException ex) {
+                InvalidObjectException invalid = new InvalidObjectException(ex.getMessage());
+                invalid.initCause(ex);
+                throw invalid;
+            }
+        }
     }
 }
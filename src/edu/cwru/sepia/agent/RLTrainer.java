@@ -0,0 +1,125 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import javax.xml.bind.JAXBException;
+import java.util.Arrays;
+
+/**
+ * Trains an RLAgent in this JVM and hands back the result instead of exiting. The map is parsed once,
+ * so any number of training jobs can be run one after another on a warmed up JVM.
+ *
+ * TrainingResult result = new RLTrainer("data/rl_5fv5f.xml").train(1000, Hyperparameters.defaults().withEpsilon(.05));
+ */
+public class RLTrainer {
+
+    private final StateCreator map;
+
+    /**
+     * @param mapPath path to the map xml, e.g. data/rl_5fv5f.xml
+     * @throws JAXBException if the file is not a valid map
+     */
+    public RLTrainer(String mapPath) throws JAXBException {
+        this(SepiaEnvironment.loadMap(mapPath));
+    }
+
+    /**
+     * @param map an already parsed map, see SepiaEnvironment.loadMap
+     */
+    public RLTrainer(StateCreator map) {
+        this.map = map;
+    }
+
+    /**
+     * Trains from random weights.
+     * @param episodes        number of episodes to play
+     * @param hyperparameters the learning parameters
+     * @return the result of the run
+     * @throws ReflectiveOperationException if combatAgent is not on the classpath
+     * @throws InterruptedException         if the thread is interrupted
+     */
+    public TrainingResult train(int episodes, Hyperparameters hyperparameters)
+            throws ReflectiveOperationException, InterruptedException {
+        return train(episodes, hyperparameters, null);
+    }
+
+    /**
+     * @param episodes        number of episodes to play
+     * @param hyperparameters the learning parameters
+     * @param initialWeights  the weights to start from or null for random weights
+     * @return the result of the run
+     * @throws ReflectiveOperationException if combatAgent is not on the classpath
+     * @throws InterruptedException         if the thread is interrupted
+     */
+    public TrainingResult train(int episodes, Hyperparameters hyperparameters, double[] initialWeights)
+            throws ReflectiveOperationException, InterruptedException {
+        RLAgent agent = new RLAgent(0, episodes, hyperparameters, initialWeights);
+        SepiaEnvironment environment = null;
+        try {
+            environment = new SepiaEnvironment(map, agent);
+            for (int episode = 0; episode < episodes; episode++) {
+                environment.runEpisode();
+            }
+
+            if (TurnProfiler.ENABLED) {
+                agent.getProfiler().writeReport(TurnProfiler.REPORT_PATH);
+            }
+
+            return agent.getTrainingResult();
+        } finally {
+            // otherwise every job in a sweep leaves its agent behind on SEPIA's threads
+            if (environment != null) {
+                environment.close();
+            }
+            agent.close();
+        }
+    }
+
+    /**
+     * Trains in the CombatSimulator instead of SEPIA, which is much faster but only approximates it.
+     * Fine-tune the result in SEPIA by passing its finalWeights to train.
+     * @param episodes        number of episodes to play
+     * @param hyperparameters the learning parameters, the seed also seeds the simulator
+     * @param initialWeights  the weights to start from or null for random weights
+     * @return the result of the run
+     */
+    public TrainingResult pretrain(int episodes, Hyperparameters hyperparameters, double[] initialWeights) {
+        RLAgent agent = new RLAgent(0, episodes, hyperparameters, initialWeights);
+        CombatSimulator simulator = new CombatSimulator(map, new SplitRandom(hyperparameters.seed).split());
+        try {
+            for (int episode = 0; episode < episodes; episode++) {
+                simulator.runEpisode(agent);
+            }
+
+            if (TurnProfiler.ENABLED) {
+                agent.getProfiler().writeReport(TurnProfiler.REPORT_PATH);
+            }
+
+            return agent.getTrainingResult();
+        } finally {
+            agent.close();
+        }
+    }
+
+    /**
+     * Usage: RLTrainer map episodes [name=value ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: RLTrainer map episodes [name=value ...]");
+            System.exit(1);
+        }
+
+        Hyperparameters hyperparameters = Hyperparameters.defaults();
+        for (int i = 2; i < args.length; i++) {
+            hyperparameters = hyperparameters.withArgument(args[i]);
+        }
+
+        TrainingResult result = new RLTrainer(args[0]).train(Integer.parseInt(args[1]), hyperparameters);
+
+        System.out.println(hyperparameters);
+        System.out.printf("won %d out of %d games: %.2f%%%n", result.episodesWon, result.episodes, result.getWinRate() * 100);
+        System.out.println("final weights: " + Arrays.toString(result.finalWeights));
+        System.out.println("best weights:  " + Arrays.toString(result.bestWeights));
+    }
+}
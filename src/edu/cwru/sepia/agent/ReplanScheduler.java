@@ -0,0 +1,184 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Decides which footmen choose a new target on an event turn. A footman is replanned when something
+ * around it changed since it last chose: it was hit, its target died, its closest enemy changed or
+ * started attacking someone else, its attack completed or failed, or the weakest enemy changed (which
+ * replans everyone). Everyone else keeps attacking what they were attacking.
+ *
+ * When at least the replan threshold fraction of the footmen need a new target everyone is replanned,
+ * so a threshold of 0 replans every footman on every event like the assignment does.
+ *
+ * All tables are indexed directly by unit ID, which SEPIA hands out densely from 0.
+ */
+public class ReplanScheduler {
+
+    public static final int NO_TARGET = -1;
+
+    /**
+     * The per-turn aggregates the scheduler reads, see FeatureRegistry. Only needed with a replan
+     * threshold above 0.
+     */
+    public static final int AGGREGATES = FeatureRegistry.ENGAGEMENTS | FeatureRegistry.NEAREST_ENEMIES
+            | FeatureRegistry.HEALTH_RANK;
+
+    /**
+     * What each footman was attacking, its closest enemy and who that enemy was attacking when it chose
+     */
+    private int[] plannedTarget = new int[0];
+    private int[] plannedNearest = new int[0];
+    private int[] plannedNearestTarget = new int[0];
+    private int plannedWeakest = TacticalSnapshot.NO_ENEMY;
+
+    private boolean[] dirty = new boolean[0];
+    private int numDirty;
+    private boolean replanAll = true;
+
+    /**
+     * Forgets every plan, at the start of an episode.
+     */
+    public void reset() {
+        Arrays.fill(plannedTarget, NO_TARGET);
+        plannedWeakest = TacticalSnapshot.NO_ENEMY;
+        numDirty = 0;
+        replanAll = true;
+    }
+
+    /**
+     * Works out which footmen need a new target this turn. The tactical snapshot and the engagement
+     * index must already be up to date for the turn.
+     *
+     * @param myFootmen       the living friendly footmen
+     * @param enemyFootmen    the living enemy footmen
+     * @param digest          the damage, deaths and finished commands of the last turn
+     * @param tactics         the closest and weakest enemies this turn
+     * @param engagements     the attacks of this turn
+     * @param replanThreshold the fraction of footmen at which everyone is replanned
+     * @return the number of footmen to replan
+     */
+    public int update(UnitRoster myFootmen, UnitRoster enemyFootmen, TurnDigest digest, TacticalSnapshot tactics,
+                      EngagementIndex engagements, double replanThreshold) {
+        int count = myFootmen.size();
+        if (replanThreshold <= 0) {
+            // everyone is replanned anyway, without looking at the aggregates
+            replanAll = true;
+            numDirty = count;
+            return numDirty;
+        }
+        if (count > 0) {
+            ensureCapacity(maxId(myFootmen) + 1);
+        }
+
+        replanAll = replanAll || tactics.getWeakestEnemy() != plannedWeakest;
+        if (!replanAll) {
+            numDirty = 0;
+            for (int i = 0; i < count; i++) {
+                int footmanId = myFootmen.getId(i);
+                int target = plannedTarget[footmanId];
+                int nearest = tactics.getNearestEnemy(footmanId);
+
+                dirty[footmanId] = target == NO_TARGET || !enemyFootmen.contains(target)
+                        || nearest != plannedNearest[footmanId]
+                        || targetOf(engagements, nearest) != plannedNearestTarget[footmanId];
+                if (dirty[footmanId]) {
+                    numDirty++;
+                }
+            }
+
+            for (int i = 0; i < digest.getHitCount(); i++) {
+                markDirty(myFootmen, digest.getDefender(i));
+            }
+
+            for (int i = 0; i < digest.getCompletedCount(); i++) {
+                markDirty(myFootmen, digest.getCompleted(i));
+            }
+            for (int i = 0; i < digest.getFailedCount(); i++) {
+                markDirty(myFootmen, digest.getFailed(i));
+            }
+
+            replanAll = numDirty >= replanThreshold * count;
+        }
+
+        if (replanAll) {
+            numDirty = count;
+        }
+        return numDirty;
+    }
+
+    /**
+     * @param footmanId a friendly footman
+     * @return whether the footman chooses a new target this turn
+     */
+    public boolean needsReplan(int footmanId) {
+        return replanAll || dirty[footmanId];
+    }
+
+    /**
+     * @param footmanId a friendly footman
+     * @return what the footman was told to attack last, or NO_TARGET
+     */
+    public int getTarget(int footmanId) {
+        return footmanId < plannedTarget.length ? plannedTarget[footmanId] : NO_TARGET;
+    }
+
+    /**
+     * Records the target a footman chose and what it saw when it chose.
+     * @param footmanId   the footman
+     * @param targetId    the enemy it attacks
+     * @param tactics     the closest and weakest enemies this turn
+     * @param engagements the attacks of this turn
+     */
+    public void planned(int footmanId, int targetId, TacticalSnapshot tactics, EngagementIndex engagements) {
+        ensureCapacity(footmanId + 1);
+
+        int nearest = tactics.getNearestEnemy(footmanId);
+        plannedTarget[footmanId] = targetId;
+        plannedNearest[footmanId] = nearest;
+        plannedNearestTarget[footmanId] = targetOf(engagements, nearest);
+    }
+
+    /**
+     * Ends the decisions of an event turn.
+     * @param tactics the closest and weakest enemies this turn
+     */
+    public void finishTurn(TacticalSnapshot tactics) {
+        plannedWeakest = tactics.getWeakestEnemy();
+        replanAll = false;
+    }
+
+    private void markDirty(UnitRoster myFootmen, int unitId) {
+        if (myFootmen.contains(unitId) && !dirty[unitId]) {
+            dirty[unitId] = true;
+            numDirty++;
+        }
+    }
+
+    private static int targetOf(EngagementIndex engagements, int enemyId) {
+        return enemyId == TacticalSnapshot.NO_ENEMY ? NO_TARGET : engagements.getTarget(enemyId);
+    }
+
+    private static int maxId(UnitRoster footmen) {
+        int max = 0;
+        for (int i = 0; i < footmen.size(); i++) {
+            max = Math.max(max, footmen.getId(i));
+        }
+        return max;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= plannedTarget.length) {
+            return;
+        }
+
+        int newSize = Math.max(size, plannedTarget.length * 2);
+        int oldSize = plannedTarget.length;
+
+        plannedTarget = Arrays.copyOf(plannedTarget, newSize);
+        Arrays.fill(plannedTarget, oldSize, newSize, NO_TARGET);
+        plannedNearest = Arrays.copyOf(plannedNearest, newSize);
+        plannedNearestTarget = Arrays.copyOf(plannedNearestTarget, newSize);
+        dirty = Arrays.copyOf(dirty, newSize);
+    }
+}
@@ -0,0 +1,367 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A fixed size ring buffer of learning transitions for experience replay. A transition is the feature
+ * vector of the action a footman took, the reward of the event and the feature vector of the best action
+ * in the state after it. Everything is stored in flat primitive arrays so adding a transition allocates
+ * nothing, and once the buffer is full the oldest transition is overwritten.
+ *
+ * Transitions are sampled uniformly, or when a priority exponent above 0 is given in proportion to
+ * (|TD error| + PRIORITY_OFFSET)^exponent using a sum tree. New transitions get the highest priority seen
+ * so far so each of them is replayed at least once with a good chance.
+ *
+ * A background thread can replay while the game thread adds transitions. The buffer is only locked to
+ * add, to sample a batch, which copies the sampled transitions out, and to write the new priorities, so
+ * adding never waits for a whole batch. Only one thread may replay at a time.
+ */
+public class ReplayBuffer {
+
+    /**
+     * Added to every TD error so no transition gets a priority of 0
+     */
+    public static final double PRIORITY_OFFSET = 0.01;
+
+    /**
+     * How much of the bias of prioritized sampling is corrected by importance sampling weights
+     */
+    public static final double IMPORTANCE_CORRECTION = 0.4;
+
+    private final int capacity;
+    private final int numFeatures;
+    private final double priorityExponent;
+
+    private final double[] features;
+    private final double[] nextFeatures;
+    private final double[] rewards;
+
+    /**
+     * Incremented whenever a transition is stored in a slot, so a batch can tell that a transition it
+     * sampled was overwritten before its priority was written back
+     */
+    private final int[] versions;
+
+    private int size;
+    private int next;
+
+    /**
+     * Sum tree over the priorities. Leaf i is at leafCount + i and every other node is the sum of its
+     * two children, so tree[1] is the total priority.
+     */
+    private final double[] tree;
+    private final int leafCount;
+    private double maxPriority = 1;
+
+    /**
+     * Reused for every batch: the sampled transitions, copies of them and their versions when sampled
+     */
+    private int[] batch = new int[0];
+    private double[] sampleWeights = new double[0];
+    private int[] batchVersions = new int[0];
+    private double[] batchFeatures = new double[0];
+    private double[] batchNextFeatures = new double[0];
+    private double[] batchRewards = new double[0];
+    private double[] batchPriorities = new double[0];
+
+    /**
+     * @param capacity         the number of transitions kept
+     * @param numFeatures      the length of a feature vector
+     * @param priorityExponent 0 for uniform sampling, otherwise how strongly the TD error drives sampling
+     */
+    public ReplayBuffer(int capacity, int numFeatures, double priorityExponent) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The replay buffer needs room for at least one transition");
+        }
+
+        this.capacity = capacity;
+        this.numFeatures = numFeatures;
+        this.priorityExponent = priorityExponent;
+
+        features = new double[capacity * numFeatures];
+        nextFeatures = new double[capacity * numFeatures];
+        rewards = new double[capacity];
+        versions = new int[capacity];
+
+        if (isPrioritized()) {
+            int leaves = 1;
+            while (leaves < capacity) {
+                leaves *= 2;
+            }
+            leafCount = leaves;
+            tree = new double[2 * leafCount];
+        } else {
+            leafCount = 0;
+            tree = null;
+        }
+    }
+
+    public boolean isPrioritized() {
+        return priorityExponent > 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stores a transition, replacing the oldest one when the buffer is full.
+     * @param transitionFeatures the features of the action taken
+     * @param reward             the reward received for it
+     * @param bestNextFeatures   the features of the best action in the following state
+     */
+    public void add(double[] transitionFeatures, double reward, double[] bestNextFeatures) {
+        add(transitionFeatures, 0, reward, bestNextFeatures);
+    }
+
+    /**
+     * Stores a transition whose features start at an offset into a larger array.
+     * @param transitionFeatures array holding the features of the action taken
+     * @param featureOffset      where those features start
+     * @param reward             the reward received for it
+     * @param bestNextFeatures   the features of the best action in the following state
+     */
+    public synchronized void add(double[] transitionFeatures, int featureOffset, double reward, double[] bestNextFeatures) {
+        int offset = next * numFeatures;
+        System.arraycopy(transitionFeatures, featureOffset, features, offset, numFeatures);
+        System.arraycopy(bestNextFeatures, 0, nextFeatures, offset, numFeatures);
+        rewards[next] = reward;
+        versions[next]++;
+
+        if (isPrioritized()) {
+            setPriority(next, maxPriority);
+        }
+
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Does one mini-batch Q-learning step on transitions sampled from the buffer. The update is the
+     * average of the single transition updates, weighted by the importance sampling weights when the
+     * sampling is prioritized. The priorities of the sampled transitions are updated with their new TD error.
+     *
+     * @param weights      the current weights, not modified
+     * @param batchSize    the number of transitions to sample
+     * @param learningRate the step size
+     * @param gamma        the discount factor
+     * @param random       the random number generator to sample with
+     * @return the updated weights, or a copy of weights if the buffer is empty
+     */
+    public double[] replay(double[] weights, int batchSize, double learningRate, double gamma, Random random) {
+        return replay(weights, new double[weights.length], batchSize, learningRate, gamma, random);
+    }
+
+    /**
+     * Like replay, but writes the updated weights into the given array so nothing is allocated.
+     * @param weights      the current weights, not modified
+     * @param newWeights   filled with the updated weights, a different array than weights
+     * @param batchSize    the number of transitions to sample
+     * @param learningRate the step size
+     * @param gamma        the discount factor
+     * @param random       the random number generator to sample with
+     * @return newWeights
+     */
+    public double[] replay(double[] weights, double[] newWeights, int batchSize, double learningRate,
+                           double gamma, Random random) {
+        System.arraycopy(weights, 0, newWeights, 0, numFeatures);
+        synchronized (this) {
+            if (size == 0) {
+                return newWeights;
+            }
+            sample(batchSize, random);
+        }
+
+        double scale = learningRate / batchSize;
+        for (int b = 0; b < batchSize; b++) {
+            int offset = b * numFeatures;
+
+            double qValue = 0;
+            double nextQValue = 0;
+            for (int k = 0; k < numFeatures; k++) {
+                qValue += weights[k] * batchFeatures[offset + k];
+                nextQValue += weights[k] * batchNextFeatures[offset + k];
+            }
+
+            // the same target as the online update, which does not let the next Q-value go below 0
+            double tdError = batchRewards[b] + gamma * Math.max(0, nextQValue) - qValue;
+
+            double step = scale * sampleWeights[b] * tdError;
+            for (int k = 0; k < numFeatures; k++) {
+                newWeights[k] += step * batchFeatures[offset + k];
+            }
+
+            if (isPrioritized()) {
+                batchPriorities[b] = Math.pow(Math.abs(tdError) + PRIORITY_OFFSET, priorityExponent);
+            }
+        }
+
+        if (isPrioritized()) {
+            writePriorities(batchSize);
+        }
+        return newWeights;
+    }
+
+    /**
+     * Gives the sampled transitions their new priorities, except those overwritten since they were sampled.
+     */
+    private synchronized void writePriorities(int batchSize) {
+        for (int b = 0; b < batchSize; b++) {
+            int transition = batch[b];
+            if (versions[transition] == batchVersions[b]) {
+                setPriority(transition, batchPriorities[b]);
+                maxPriority = Math.max(maxPriority, batchPriorities[b]);
+            }
+        }
+    }
+
+    /**
+     * Fills batch with transition indices and sampleWeights with their importance sampling weights, and
+     * copies the sampled transitions so the batch can be computed without holding the lock.
+     */
+    private void sample(int batchSize, Random random) {
+        if (batch.length < batchSize) {
+            batch = new int[batchSize];
+            sampleWeights = new double[batchSize];
+            batchVersions = new int[batchSize];
+            batchFeatures = new double[batchSize * numFeatures];
+            batchNextFeatures = new double[batchSize * numFeatures];
+            batchRewards = new double[batchSize];
+            batchPriorities = new double[batchSize];
+        }
+
+        if (!isPrioritized()) {
+            for (int b = 0; b < batchSize; b++) {
+                batch[b] = random.nextInt(size);
+                sampleWeights[b] = 1;
+            }
+        } else {
+            samplePrioritized(batchSize, random);
+        }
+
+        for (int b = 0; b < batchSize; b++) {
+            int transition = batch[b];
+            System.arraycopy(features, transition * numFeatures, batchFeatures, b * numFeatures, numFeatures);
+            System.arraycopy(nextFeatures, transition * numFeatures, batchNextFeatures, b * numFeatures, numFeatures);
+            batchRewards[b] = rewards[transition];
+            batchVersions[b] = versions[transition];
+        }
+    }
+
+    private void samplePrioritized(int batchSize, Random random) {
+        // stratified: one sample from each of batchSize equal slices of the total priority
+        double total = tree[1];
+        double slice = total / batchSize;
+        double maxWeight = 0;
+        for (int b = 0; b < batchSize; b++) {
+            int transition = find((b + random.nextDouble()) * slice);
+            batch[b] = transition;
+
+            double probability = tree[leafCount + transition] / total;
+            sampleWeights[b] = Math.pow(size * probability, -IMPORTANCE_CORRECTION);
+            maxWeight = Math.max(maxWeight, sampleWeights[b]);
+        }
+
+        for (int b = 0; b < batchSize; b++) {
+            sampleWeights[b] /= maxWeight;
+        }
+    }
+
+    /**
+     * Writes the settings and every stored transition with its priority, see read.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(numFeatures);
+        out.writeDouble(priorityExponent);
+        out.writeInt(size);
+        out.writeInt(next);
+        out.writeDouble(maxPriority);
+
+        for (int i = 0; i < size * numFeatures; i++) {
+            out.writeDouble(features[i]);
+            out.writeDouble(nextFeatures[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(rewards[i]);
+        }
+        // the whole tree, summing the leaves again could round differently
+        if (isPrioritized()) {
+            for (int node = 1; node < leafCount + size; node++) {
+                out.writeDouble(tree[node]);
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer written by write.
+     * @param in where to read from
+     * @return the buffer with the same transitions and priorities
+     * @throws IOException if reading fails or the data is not a replay buffer
+     */
+    public static ReplayBuffer read(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int numFeatures = in.readInt();
+        double priorityExponent = in.readDouble();
+        int size = in.readInt();
+        int next = in.readInt();
+        if (capacity < 1 || numFeatures < 1 || size < 0 || size > capacity || next < 0 || next >= capacity) {
+            throw new IOException("Invalid replay buffer of " + size + " out of " + capacity + " transitions");
+        }
+
+        ReplayBuffer buffer = new ReplayBuffer(capacity, numFeatures, priorityExponent);
+        buffer.size = size;
+        buffer.next = next;
+        buffer.maxPriority = in.readDouble();
+
+        for (int i = 0; i < size * numFeatures; i++) {
+            buffer.features[i] = in.readDouble();
+            buffer.nextFeatures[i] = in.readDouble();
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.rewards[i] = in.readDouble();
+        }
+        if (buffer.isPrioritized()) {
+            for (int node = 1; node < buffer.leafCount + size; node++) {
+                buffer.tree[node] = in.readDouble();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @param value a number between 0 and the total priority
+     * @return the transition whose slice of the cumulative priorities contains value
+     */
+    private int find(double value) {
+        int node = 1;
+        while (node < leafCount) {
+            int left = 2 * node;
+            if (value < tree[left] || tree[left + 1] == 0) {
+                node = left;
+            } else {
+                value -= tree[left];
+                node = left + 1;
+            }
+        }
+
+        // rounding can walk off the filled part of the tree
+        return Math.min(node - leafCount, size - 1);
+    }
+
+    private void setPriority(int transition, double priority) {
+        int node = leafCount + transition;
+        double change = priority - tree[node];
+        while (node >= 1) {
+            tree[node] += change;
+            node /= 2;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.util.Random;
+
+/**
+ * Replays mini-batches on a thread of its own so the game thread does not wait for them. The game thread
+ * starts a batch on a copy of its weights and at a later event adds what the batch changed to its weights.
+ *
+ * Nothing is allocated per batch: the copy of the weights and the replayed weights are kept, and the two
+ * threads hand the batch over with wait and notify instead of through an executor's queue.
+ */
+public class ReplayWorker implements Closeable {
+
+    private final Random random;
+    private final double[] snapshot;
+    private final double[] replayed;
+
+    /**
+     * The batch to run, set by start
+     */
+    private ReplayBuffer buffer;
+    private int batchSize;
+    private double learningRate;
+    private double gamma;
+
+    /**
+     * running from start until the batch is done, finished from then until its change is collected
+     */
+    private boolean running;
+    private boolean finished;
+    private boolean closed;
+    private RuntimeException failure;
+
+    /**
+     * @param numFeatures the number of weights
+     * @param random      the generator to sample with, only used by the worker thread
+     * @param name        the name of the thread
+     */
+    public ReplayWorker(int numFeatures, Random random, String name) {
+        this.random = random;
+        snapshot = new double[numFeatures];
+        replayed = new double[numFeatures];
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true while a batch is running
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Adds what the last finished batch changed to the weights.
+     * @param weights the weights to add the change to
+     * @return false if there was no finished batch, the weights are unchanged then
+     * @throws IllegalStateException if the batch failed
+     */
+    public synchronized boolean collect(double[] weights) {
+        if (failure != null) {
+            throw new IllegalStateException("Background replay failed", failure);
+        }
+        if (!finished) {
+            return false;
+        }
+
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] += replayed[i] - snapshot[i];
+        }
+        finished = false;
+        return true;
+    }
+
+    /**
+     * Starts a batch on a copy of the weights. Only call it when no batch is running or waiting to be
+     * collected.
+     * @param buffer       the buffer to replay from
+     * @param weights      the current weights, copied
+     * @param batchSize    the number of transitions to sample
+     * @param learningRate the step size
+     * @param gamma        the discount factor
+     */
+    public synchronized void start(ReplayBuffer buffer, double[] weights, int batchSize, double learningRate, double gamma) {
+        if (running || finished) {
+            throw new IllegalStateException("The last batch has not been collected");
+        }
+
+        System.arraycopy(weights, 0, snapshot, 0, snapshot.length);
+        this.buffer = buffer;
+        this.batchSize = batchSize;
+        this.learningRate = learningRate;
+        this.gamma = gamma;
+        running = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops the thread once the running batch is done.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            synchronized (this) {
+                while (!running && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            // the game thread does not touch the snapshot or the replayed weights until the batch is done
+            RuntimeException batchFailure = null;
+            try {
+                buffer.replay(snapshot, replayed, batchSize, learningRate, gamma, random);
+            } catch (RuntimeException e) {
+                batchFailure = e;
+            }
+
+            synchronized (this) {
+                running = false;
+                finished = batchFailure == null;
+                failure = batchFailure;
+            }
+        }
+    }
+}
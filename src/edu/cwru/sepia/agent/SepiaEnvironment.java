@@ -0,0 +1,162 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * One SEPIA game between a learning agent and the scripted combatAgent, run in this JVM.
+ * This does the same setup as SimpleModelEpisodicRunner so several of these can run side by side.
+ * Close it once done, SEPIA's threads keep both agents alive until then.
+ */
+public class SepiaEnvironment implements Closeable {
+
+    /**
+     * Seed SimpleModelEpisodicRunner uses for the model and environment
+     */
+    public static final int SEED = 6;
+
+    /**
+     * How long close waits for each agent thread to stop
+     */
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Holds the thread per agent the environment starts
+     */
+    private final ThreadGroup agentThreads;
+
+    /**
+     * null once closed
+     */
+    private Environment environment;
+
+    /**
+     * @param stateCreator the map to play on, see loadMap
+     * @param agent        the agent playing as player 0
+     * @throws ReflectiveOperationException if combatAgent is not on the classpath
+     */
+    public SepiaEnvironment(StateCreator stateCreator, Agent agent) throws ReflectiveOperationException {
+        this(stateCreator, agent, SEED);
+    }
+
+    /**
+     * @param stateCreator the map to play on, see loadMap
+     * @param agent        the agent playing as player 0
+     * @param seed         the seed of the model and environment, games side by side need different ones
+     * @throws ReflectiveOperationException if combatAgent is not on the classpath
+     */
+    public SepiaEnvironment(StateCreator stateCreator, Agent agent, final int seed) throws ReflectiveOperationException {
+        Configuration configuration = createModelConfiguration();
+        final SimpleModel model = new SimpleModel(stateCreator.createState(), seed, stateCreator, configuration);
+        final Agent[] agents = new Agent[]{agent, createEnemy(RLAgent.ENEMY_PLAYERNUM)};
+
+        // The environment starts a thread per agent that never ends. Threads inherit the daemon flag and
+        // the group of the thread that creates them, so creating the environment on a daemon thread lets
+        // the JVM exit and its own group lets close find the threads.
+        agentThreads = new ThreadGroup("sepia-environment");
+        final Environment[] created = new Environment[1];
+        Thread creator = new Thread(agentThreads, new Runnable() {
+            @Override
+            public void run() {
+                created[0] = new Environment(agents, model, seed);
+            }
+        });
+        creator.setDaemon(true);
+        creator.start();
+        try {
+            creator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating the environment", e);
+        }
+
+        environment = created[0];
+    }
+
+    /**
+     * Plays one episode from the initial map to the end of the game.
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public void runEpisode() throws InterruptedException {
+        if (environment == null) {
+            throw new IllegalStateException("The environment is closed");
+        }
+        environment.runEpisode();
+    }
+
+    /**
+     * Stops the agent threads and drops the environment, and with them the agents. Between episodes the
+     * threads wait for the next state and hold no locks. They ignore interrupts, so they are stopped.
+     * @throws IllegalStateException if a thread does not stop
+     */
+    @SuppressWarnings("deprecation")
+    @Override
+    public void close() {
+        if (environment == null) {
+            return;
+        }
+        environment = null;
+
+        Thread[] threads = new Thread[agentThreads.activeCount() + 1];
+        int count = agentThreads.enumerate(threads);
+        for (int i = 0; i < count; i++) {
+            threads[i].stop();
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                threads[i].join(STOP_TIMEOUT_MILLIS);
+                if (threads[i].isAlive()) {
+                    throw new IllegalStateException("Agent thread " + threads[i].getName() + " did not stop");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        agentThreads.destroy();
+    }
+
+    /**
+     * Parses a map file such as data/rl_5fv5f.xml. The result can create as many fresh states as needed.
+     * @param mapPath path to the map xml
+     * @return the state creator for the map
+     * @throws JAXBException if the file is not a valid map
+     */
+    public static StateCreator loadMap(String mapPath) throws JAXBException {
+        JAXBContext context = JAXBContext.newInstance(XmlState.class);
+        XmlState xmlState = (XmlState) context.createUnmarshaller().unmarshal(new File(mapPath));
+        return new XmlStateCreator(xmlState);
+    }
+
+    /**
+     * @return the model parameters used by the configs in data/
+     */
+    public static Configuration createModelConfiguration() {
+        Configuration configuration = new Configuration();
+        configuration.put("environment.model.Conquest", true);
+        configuration.put("environment.model.Midas", false);
+        configuration.put("environment.model.ManifestDestiny", false);
+        configuration.put("environment.model.TimeLimit", 100000);
+        return configuration;
+    }
+
+    /**
+     * The enemy agent ships as a class file in the default package, so it is loaded by name.
+     * @param playernum the enemy player number
+     * @return a new combatAgent
+     * @throws ReflectiveOperationException if combatAgent is not on the classpath
+     */
+    public static Agent createEnemy(int playernum) throws ReflectiveOperationException {
+        Class<?> enemyClass = Class.forName("combatAgent");
+        return (Agent) enemyClass.getConstructor(int.class).newInstance(playernum);
+    }
+}
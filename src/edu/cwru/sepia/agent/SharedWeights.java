@@ -0,0 +1,145 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A weight vector shared by several agents training at the same time.
+ *
+ * HOGWILD:     every update is added straight into a plain array without any locking. Concurrent
+ *              updates can overwrite each other, which is fine because the updates are small and sparse.
+ * ATOMIC:      every update is added with a compare-and-set per weight so no update is lost.
+ * SYNCHRONOUS: agents learn on their own copy and the trainer averages the copies every few episodes.
+ */
+public class SharedWeights {
+
+    public enum Mode {
+        HOGWILD, ATOMIC, SYNCHRONOUS
+    }
+
+    private final Mode mode;
+    private final double[] plain;
+    private final AtomicLongArray atomic;
+
+    /**
+     * @param initialWeights the starting weights, copied
+     * @param mode           how updates are combined
+     */
+    public SharedWeights(double[] initialWeights, Mode mode) {
+        this.mode = mode;
+
+        if (mode == Mode.ATOMIC) {
+            plain = null;
+            atomic = new AtomicLongArray(initialWeights.length);
+            for (int i = 0; i < initialWeights.length; i++) {
+                atomic.set(i, Double.doubleToRawLongBits(initialWeights[i]));
+            }
+        } else {
+            plain = initialWeights.clone();
+            atomic = null;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int size() {
+        return plain != null ? plain.length : atomic.length();
+    }
+
+    /**
+     * Publishes an agent's weight update and returns the weights it should continue with.
+     * @param oldWeights the weights before the update
+     * @param newWeights the weights after the update, overwritten with the shared weights
+     * @return the weights the agent should use from now on
+     */
+    public double[] update(double[] oldWeights, double[] newWeights) {
+        if (mode == Mode.SYNCHRONOUS) {
+            // the agent keeps learning on its own copy until the next sync
+            return newWeights;
+        }
+
+        for (int i = 0; i < newWeights.length; i++) {
+            add(i, newWeights[i] - oldWeights[i]);
+        }
+        read(newWeights);
+        return newWeights;
+    }
+
+    /**
+     * Publishes an in-place weight change. Like update, but the agent hands over the change itself.
+     * @param change  how much each weight changed
+     * @param weights the agent's weights, already changed, overwritten with the shared weights
+     */
+    public void apply(double[] change, double[] weights) {
+        if (mode == Mode.SYNCHRONOUS) {
+            return;
+        }
+
+        for (int i = 0; i < change.length; i++) {
+            add(i, change[i]);
+        }
+        read(weights);
+    }
+
+    /**
+     * Copies the current shared weights into the given array.
+     * @param into array of at least size() to copy into
+     */
+    public void read(double[] into) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] = plain != null ? plain[i] : Double.longBitsToDouble(atomic.get(i));
+        }
+    }
+
+    /**
+     * @return a copy of the current shared weights
+     */
+    public double[] snapshot() {
+        double[] weights = new double[size()];
+        read(weights);
+        return weights;
+    }
+
+    /**
+     * Replaces the shared weights with the average of the given weight vectors. Only meant to be called
+     * while no agent is updating, i.e. at a synchronization barrier.
+     * @param workerWeights the weights of every agent
+     */
+    public void average(double[][] workerWeights) {
+        for (int i = 0; i < size(); i++) {
+            double sum = 0;
+            for (double[] weights : workerWeights) {
+                sum += weights[i];
+            }
+            set(i, sum / workerWeights.length);
+        }
+    }
+
+    private void add(int i, double delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        if (plain != null) {
+            plain[i] += delta;
+            return;
+        }
+
+        while (true) {
+            long bits = atomic.get(i);
+            long updated = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + delta);
+            if (atomic.compareAndSet(i, bits, updated)) {
+                return;
+            }
+        }
+    }
+
+    private void set(int i, double value) {
+        if (plain != null) {
+            plain[i] = value;
+        } else {
+            atomic.set(i, Double.doubleToRawLongBits(value));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes already encoded snapshots to a file on a background thread, the same way WeightCheckpointer
+ * writes weights: only the latest of several pending snapshots is written, and the file is replaced
+ * atomically. Used for the training state, see RLAgent.savePlayerData.
+ */
+public class SnapshotWriter implements Closeable {
+
+    private final Path path;
+    private final AtomicReference<byte[]> pending = new AtomicReference<>();
+    private final ExecutorService writer;
+
+    /**
+     * @param path the snapshot file, its directory is created if needed
+     */
+    public SnapshotWriter(final Path path) {
+        this.path = path;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "snapshot-" + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules a snapshot to be written. Returns right away.
+     * @param snapshot the encoded snapshot, not copied so it must not be changed afterwards
+     */
+    public void save(byte[] snapshot) {
+        if (pending.getAndSet(snapshot) == null) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the writer thread and writes whatever is still pending. Called when the program ends.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writePending();
+    }
+
+    private void writePending() {
+        byte[] snapshot = pending.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+
+        try {
+            WeightCheckpointer.replace(path, ByteBuffer.wrap(snapshot));
+        } catch (IOException ex) {
+            System.err.println("Failed to write snapshot " + path + ". Reason: " + ex.getMessage());
+        }
+    }
+}
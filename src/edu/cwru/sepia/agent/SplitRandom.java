@@ -0,0 +1,74 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * A SplitMix64 random number generator that can be split into independent generators. It is a
+ * java.util.Random so it works anywhere the agent used one, but it has no locks or atomics, so
+ * every thread needs its own instance. split() is the way to get one: the same seed always gives
+ * the same tree of generators, so runs seeded from one master seed are reproducible.
+ */
+public class SplitRandom extends Random {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * not initialized here because Random's constructor sets it through setSeed
+     */
+    private long state;
+
+    public SplitRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * @return a new generator whose sequence is independent of this one, advancing this one by one step
+     */
+    public SplitRandom split() {
+        return new SplitRandom(nextLong());
+    }
+
+    /**
+     * @return the current state, which restore takes to continue the same sequence later
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Continues the sequence of a generator from a state returned by getState.
+     * @param state the saved state
+     */
+    public void restore(long state) {
+        this.state = state;
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        state = mix(seed);
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
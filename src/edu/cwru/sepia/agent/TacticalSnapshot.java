@@ -0,0 +1,189 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * The closest enemy of every friendly footman and the weakest enemy overall, computed once per turn.
+ * The two are computed separately so a turn only pays for the one it needs, see FeatureRegistry.
+ *
+ * Enemies are bucketed into a grid of CELL_SIZE x CELL_SIZE cells over the map so the nearest enemy
+ * search only looks at the cells around a footman instead of every enemy. Ties are broken the same
+ * way as a linear scan: the enemy that comes first in the enemy list wins.
+ */
+public class TacticalSnapshot {
+
+    public static final int NO_ENEMY = -1;
+    public static final int CELL_SIZE = 4;
+
+    // enemies in the order they were given
+    private int numEnemies;
+    private int[] enemyIds = new int[0];
+    private int[] enemyX = new int[0];
+    private int[] enemyY = new int[0];
+
+    // grid buckets, enemies of cell c are cellEnemies[cellStart[c]] to cellEnemies[cellStart[c + 1] - 1]
+    private int cellsX;
+    private int cellsY;
+    private int[] cellStart = new int[1];
+    private int[] cellEnemies = new int[0];
+
+    // closest enemy indexed by footman unit ID
+    private int[] nearestEnemyOf = new int[0];
+    private int weakestEnemy = NO_ENEMY;
+
+    /**
+     * Rebuilds the enemy grid.
+     * @param ids     enemy unit IDs
+     * @param xs      enemy x positions
+     * @param ys      enemy y positions
+     * @param count   number of enemies in the arrays
+     * @param xExtent width of the map
+     * @param yExtent height of the map
+     */
+    public void setEnemies(int[] ids, int[] xs, int[] ys, int count, int xExtent, int yExtent) {
+        if (enemyIds.length < count) {
+            enemyIds = new int[count];
+            enemyX = new int[count];
+            enemyY = new int[count];
+            cellEnemies = new int[count];
+        }
+        System.arraycopy(ids, 0, enemyIds, 0, count);
+        System.arraycopy(xs, 0, enemyX, 0, count);
+        System.arraycopy(ys, 0, enemyY, 0, count);
+        numEnemies = count;
+
+        cellsX = Math.max(1, (xExtent + CELL_SIZE - 1) / CELL_SIZE);
+        cellsY = Math.max(1, (yExtent + CELL_SIZE - 1) / CELL_SIZE);
+        int numCells = cellsX * cellsY;
+        if (cellStart.length < numCells + 1) {
+            cellStart = new int[numCells + 1];
+        }
+
+        // counting sort of the enemies into cells, stable so list order is kept inside a cell
+        Arrays.fill(cellStart, 0, numCells + 1, 0);
+        for (int i = 0; i < count; i++) {
+            cellStart[cellOf(enemyX[i], enemyY[i]) + 1]++;
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        for (int i = 0; i < count; i++) {
+            int cell = cellOf(enemyX[i], enemyY[i]);
+            // cellStart[cell] is used as the insertion cursor and restored below
+            cellEnemies[cellStart[cell]++] = i;
+        }
+        for (int c = numCells; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    /**
+     * Finds the weakest enemy.
+     * @param ids   enemy unit IDs
+     * @param hps   enemy health
+     * @param count number of enemies in the arrays
+     */
+    public void setWeakest(int[] ids, int[] hps, int count) {
+        weakestEnemy = NO_ENEMY;
+        int weakestHealth = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (hps[i] < weakestHealth) {
+                weakestHealth = hps[i];
+                weakestEnemy = ids[i];
+            }
+        }
+    }
+
+    /**
+     * Fills the nearest enemy table for the given footmen. Must be called after setEnemies.
+     * @param ids   footman unit IDs
+     * @param xs    footman x positions
+     * @param ys    footman y positions
+     * @param count number of footmen in the arrays
+     */
+    public void setFootmen(int[] ids, int[] xs, int[] ys, int count) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= nearestEnemyOf.length) {
+                int oldSize = nearestEnemyOf.length;
+                nearestEnemyOf = Arrays.copyOf(nearestEnemyOf, Math.max(ids[i] + 1, oldSize * 2));
+                Arrays.fill(nearestEnemyOf, oldSize, nearestEnemyOf.length, NO_ENEMY);
+            }
+            nearestEnemyOf[ids[i]] = findNearest(xs[i], ys[i]);
+        }
+    }
+
+    /**
+     * @param footmanId a footman given to setFootmen this turn
+     * @return the ID of the closest enemy to the footman
+     */
+    public int getNearestEnemy(int footmanId) {
+        return footmanId < nearestEnemyOf.length ? nearestEnemyOf[footmanId] : NO_ENEMY;
+    }
+
+    /**
+     * @return the ID of the enemy with the least health
+     */
+    public int getWeakestEnemy() {
+        return weakestEnemy;
+    }
+
+    /**
+     * Finds the closest enemy to a position by chebyshev distance, searching outwards one ring of
+     * cells at a time until no closer enemy can exist.
+     *
+     * @param x the x position
+     * @param y the y position
+     * @return the ID of the closest enemy or NO_ENEMY if there are none
+     */
+    public int findNearest(int x, int y) {
+        int cellX = clamp(x / CELL_SIZE, cellsX);
+        int cellY = clamp(y / CELL_SIZE, cellsY);
+        int maxRing = Math.max(Math.max(cellX, cellsX - 1 - cellX), Math.max(cellY, cellsY - 1 - cellY));
+
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // every enemy in this ring is at least this far away
+            int minDistance = ring == 0 ? 0 : (ring - 1) * CELL_SIZE + 1;
+            if (minDistance > bestDistance) {
+                break;
+            }
+
+            for (int cy = cellY - ring; cy <= cellY + ring; cy++) {
+                if (cy < 0 || cy >= cellsY) {
+                    continue;
+                }
+                boolean edgeRow = cy == cellY - ring || cy == cellY + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+
+                for (int cx = cellX - ring; cx <= cellX + ring; cx += Math.max(step, 1)) {
+                    if (cx < 0 || cx >= cellsX) {
+                        continue;
+                    }
+
+                    int cell = cy * cellsX + cx;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int enemy = cellEnemies[k];
+                        int distance = Math.max(Math.abs(enemyX[enemy] - x), Math.abs(enemyY[enemy] - y));
+                        if (distance < bestDistance || (distance == bestDistance && enemy < best)) {
+                            bestDistance = distance;
+                            best = enemy;
+                        }
+                    }
+                }
+            }
+        }
+
+        return best == -1 ? NO_ENEMY : enemyIds[best];
+    }
+
+    private int cellOf(int x, int y) {
+        return clamp(y / CELL_SIZE, cellsY) * cellsX + clamp(x / CELL_SIZE, cellsX);
+    }
+
+    private static int clamp(int cell, int numCells) {
+        return cell < 0 ? 0 : (cell >= numCells ? numCells - 1 : cell);
+    }
+}
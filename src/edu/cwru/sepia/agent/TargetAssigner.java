@@ -0,0 +1,219 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Assigns footmen to enemies jointly so the sum of their Q-values is as high as possible, with at most a
+ * given number of footmen on each enemy (only so many can stand next to it and attack).
+ *
+ * The solver is the Hungarian algorithm in its shortest augmenting path form, with an enemy taking up to
+ * its capacity instead of one footman. Footmen are added one at a time. Each one searches for the
+ * cheapest way to get an enemy: take one with room left, or push a footman off a full enemy onto another
+ * one, and so on, using potentials so that every search is a Dijkstra search on non-negative costs. With
+ * F footmen and E enemies a search is O(E (E + F)) at worst and the whole solve O(F E (E + F)), but most
+ * searches end at the first enemy, when a footman's favourite enemy still has room.
+ *
+ * If the enemies do not have room for every footman, each enemy gets the same amount of extra room so
+ * that everyone has a target.
+ */
+public class TargetAssigner {
+
+    public static final int NO_TARGET = -1;
+
+    private int numTargets;
+    private int[] capacity = new int[0];
+    private int[] load = new int[0];
+
+    /**
+     * the footmen to assign, as rows of the Q-value matrix, and the enemy each one got
+     */
+    private int numFootmen;
+    private int[] rows = new int[16];
+    private int[] targetOf = new int[16];
+
+    /**
+     * Search state: the potentials of footmen and enemies, for each enemy the cheapest reduced cost found
+     * to it and the footman it was found from, and which footmen and enemies the search has reached
+     */
+    private double[] footmanPotential = new double[16];
+    private double[] targetPotential = new double[0];
+    private double[] minCost = new double[0];
+    private int[] reachedFrom = new int[0];
+    private boolean[] targetVisited = new boolean[0];
+    private int[] visitedFootmen = new int[16];
+
+    /**
+     * Starts a new assignment.
+     * @param numTargets the number of enemies, the columns of the Q-value matrix
+     * @param capacity   the most footmen on one enemy
+     */
+    public void reset(int numTargets, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Every enemy needs room for at least one footman");
+        }
+
+        this.numTargets = numTargets;
+        if (this.capacity.length < numTargets) {
+            this.capacity = new int[numTargets];
+            load = new int[numTargets];
+            targetPotential = new double[numTargets];
+            minCost = new double[numTargets];
+            reachedFrom = new int[numTargets];
+            targetVisited = new boolean[numTargets];
+        }
+        Arrays.fill(this.capacity, 0, numTargets, capacity);
+        numFootmen = 0;
+    }
+
+    /**
+     * Takes room on an enemy for a footman that is not being assigned, e.g. one that keeps its target.
+     * @param target the column of the enemy
+     */
+    public void occupy(int target) {
+        if (capacity[target] > 0) {
+            capacity[target]--;
+        }
+    }
+
+    /**
+     * Adds a footman to assign.
+     * @param row the row of the footman in the Q-value matrix
+     */
+    public void addFootman(int row) {
+        if (numFootmen == rows.length) {
+            int size = numFootmen * 2;
+            rows = Arrays.copyOf(rows, size);
+            targetOf = Arrays.copyOf(targetOf, size);
+            footmanPotential = Arrays.copyOf(footmanPotential, size);
+            visitedFootmen = Arrays.copyOf(visitedFootmen, size);
+        }
+        rows[numFootmen++] = row;
+    }
+
+    public int size() {
+        return numFootmen;
+    }
+
+    /**
+     * @param footman the index of a footman, in the order they were added
+     * @return its row in the Q-value matrix
+     */
+    public int getRow(int footman) {
+        return rows[footman];
+    }
+
+    /**
+     * @param footman the index of a footman, in the order they were added
+     * @return the column of the enemy it was assigned, or NO_TARGET if there are no enemies
+     */
+    public int getTarget(int footman) {
+        return targetOf[footman];
+    }
+
+    /**
+     * Assigns every added footman an enemy.
+     * @param qValues the scored Q-values of this turn
+     */
+    public void solve(QValueEngine qValues) {
+        Arrays.fill(targetOf, 0, numFootmen, NO_TARGET);
+        if (numFootmen == 0 || numTargets == 0) {
+            return;
+        }
+
+        int room = 0;
+        for (int t = 0; t < numTargets; t++) {
+            room += capacity[t];
+        }
+        if (room < numFootmen) {
+            int extra = (numFootmen - room + numTargets - 1) / numTargets;
+            for (int t = 0; t < numTargets; t++) {
+                capacity[t] += extra;
+            }
+        }
+
+        Arrays.fill(load, 0, numTargets, 0);
+        Arrays.fill(footmanPotential, 0, numFootmen, 0);
+        Arrays.fill(targetPotential, 0, numTargets, 0);
+
+        for (int footman = 0; footman < numFootmen; footman++) {
+            addToAssignment(qValues, footman);
+        }
+    }
+
+    /**
+     * Finds the cheapest way to give one more footman an enemy and moves the footmen along it.
+     * Costs are negative Q-values since the sum of Q-values is maximized.
+     */
+    private void addToAssignment(QValueEngine qValues, int newFootman) {
+        Arrays.fill(minCost, 0, numTargets, Double.POSITIVE_INFINITY);
+        Arrays.fill(targetVisited, 0, numTargets, false);
+
+        int numVisited = 0;
+        int relaxed = 0;
+        visitedFootmen[numVisited++] = newFootman;
+
+        int target;
+        while (true) {
+            // costs to every enemy from the footmen reached since the last step
+            for (; relaxed < numVisited; relaxed++) {
+                int footman = visitedFootmen[relaxed];
+                int row = rows[footman];
+                double potential = footmanPotential[footman];
+                for (int t = 0; t < numTargets; t++) {
+                    if (targetVisited[t]) {
+                        continue;
+                    }
+                    double cost = -qValues.getQValue(row, t) - potential - targetPotential[t];
+                    if (cost < minCost[t]) {
+                        minCost[t] = cost;
+                        reachedFrom[t] = footman;
+                    }
+                }
+            }
+
+            target = -1;
+            double delta = Double.POSITIVE_INFINITY;
+            for (int t = 0; t < numTargets; t++) {
+                if (!targetVisited[t] && minCost[t] < delta) {
+                    delta = minCost[t];
+                    target = t;
+                }
+            }
+
+            for (int i = 0; i < numVisited; i++) {
+                footmanPotential[visitedFootmen[i]] += delta;
+            }
+            for (int t = 0; t < numTargets; t++) {
+                if (targetVisited[t]) {
+                    targetPotential[t] -= delta;
+                } else {
+                    minCost[t] -= delta;
+                }
+            }
+
+            if (load[target] < capacity[target]) {
+                break;
+            }
+
+            // the enemy is full, any footman on it could move somewhere else
+            targetVisited[target] = true;
+            for (int footman = 0; footman < newFootman; footman++) {
+                if (targetOf[footman] == target) {
+                    visitedFootmen[numVisited++] = footman;
+                }
+            }
+        }
+
+        // every footman on the path moves to the enemy it was reached from
+        load[target]++;
+        while (true) {
+            int footman = reachedFrom[target];
+            int previous = targetOf[footman];
+            targetOf[footman] = target;
+            if (footman == newFootman) {
+                break;
+            }
+            target = previous;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a trace written by TraceRecorder. Every row group is memory-mapped and its columns are read in
+ * place, so a trace can be trained on many times without parsing it. A row group cut short at the end of
+ * the file, e.g. by a crash while recording, is ignored.
+ *
+ * Usage: TraceReader trace passes [name=value ...]
+ * trains weights from 0 on the trace with the given hyperparameters and writes them to OFFLINE_PATH.
+ */
+public class TraceReader implements Closeable {
+
+    public static final String OFFLINE_PATH = "agent_weights/offline_weights.ckpt";
+
+    private final FileChannel channel;
+    private final int numFeatures;
+    private final List<RowGroup> groups = new ArrayList<>();
+    private long size;
+
+    /**
+     * @param path the trace file
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public TraceReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(12, channel.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < 12 || header.getInt() != TraceRecorder.MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a trace");
+        }
+        int version = header.getInt();
+        if (version != TraceRecorder.VERSION) {
+            channel.close();
+            throw new IOException("Unsupported trace version " + version);
+        }
+        numFeatures = header.getInt();
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        long fileSize = channel.size();
+        while (position + 4 <= fileSize) {
+            lengthBuffer.clear();
+            while (lengthBuffer.hasRemaining() && channel.read(lengthBuffer, position + lengthBuffer.position()) > 0) {
+                // read the 4 bytes of the length
+            }
+            int length = lengthBuffer.getInt(0);
+            if (length < 8 || position + 4 + length > fileSize) {
+                break;
+            }
+
+            RowGroup group = new RowGroup(channel.map(FileChannel.MapMode.READ_ONLY, position + 4, length), numFeatures);
+            groups.add(group);
+            size += group.size();
+            position += 4 + length;
+        }
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    public int getRowGroupCount() {
+        return groups.size();
+    }
+
+    public RowGroup getRowGroup(int index) {
+        return groups.get(index);
+    }
+
+    /**
+     * @return the number of transitions in the trace
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * One pass of Q-learning over every transition in recorded order, the same update the agent makes
+     * online with lambda 0.
+     * @param weights      the weights, updated in place
+     * @param learningRate the step size
+     * @param gamma        the discount factor
+     */
+    public void learn(double[] weights, double learningRate, double gamma) {
+        for (RowGroup group : groups) {
+            int candidate = 0;
+            for (int row = 0; row < group.size(); row++) {
+                double qValue = group.dotFeatures(row, weights);
+
+                double maxQValue = Double.NEGATIVE_INFINITY;
+                int count = group.getCandidateCount(row);
+                for (int c = 0; c < count; c++) {
+                    maxQValue = Math.max(maxQValue, group.dotCandidate(candidate + c, weights));
+                }
+                double nextQValue = count == 0 ? 0 : Math.max(0, maxQValue);
+
+                double step = learningRate * (group.getReward(row) + gamma * nextQValue - qValue);
+                for (int k = 0; k < numFeatures; k++) {
+                    weights[k] += step * group.getFeature(row, k);
+                }
+                candidate += count;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The columns of one row group, read from the mapped file
+     */
+    public static class RowGroup {
+        private final int rows;
+        private final int candidates;
+        private final IntBuffer episode;
+        private final IntBuffer turn;
+        private final IntBuffer footman;
+        private final IntBuffer candidateCount;
+        private final DoubleBuffer reward;
+        private final DoubleBuffer[] features;
+        private final DoubleBuffer[] candidateFeatures;
+
+        RowGroup(MappedByteBuffer mapped, int numFeatures) {
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            rows = buffer.getInt();
+            candidates = buffer.getInt();
+
+            episode = intColumn(buffer, rows);
+            turn = intColumn(buffer, rows);
+            footman = intColumn(buffer, rows);
+            candidateCount = intColumn(buffer, rows);
+            reward = doubleColumn(buffer, rows);
+
+            features = new DoubleBuffer[numFeatures];
+            for (int k = 0; k < numFeatures; k++) {
+                features[k] = doubleColumn(buffer, rows);
+            }
+            candidateFeatures = new DoubleBuffer[numFeatures];
+            for (int k = 0; k < numFeatures; k++) {
+                candidateFeatures[k] = doubleColumn(buffer, candidates);
+            }
+        }
+
+        private static IntBuffer intColumn(ByteBuffer buffer, int count) {
+            ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.limit(4 * count);
+            buffer.position(buffer.position() + 4 * count);
+            return slice.asIntBuffer();
+        }
+
+        private static DoubleBuffer doubleColumn(ByteBuffer buffer, int count) {
+            ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.limit(8 * count);
+            buffer.position(buffer.position() + 8 * count);
+            return slice.asDoubleBuffer();
+        }
+
+        public int size() {
+            return rows;
+        }
+
+        public int getCandidateTotal() {
+            return candidates;
+        }
+
+        public int getEpisode(int row) {
+            return episode.get(row);
+        }
+
+        public int getTurn(int row) {
+            return turn.get(row);
+        }
+
+        public int getFootman(int row) {
+            return footman.get(row);
+        }
+
+        public double getReward(int row) {
+            return reward.get(row);
+        }
+
+        public double getFeature(int row, int feature) {
+            return features[feature].get(row);
+        }
+
+        /**
+         * @param row a transition
+         * @return the number of candidates of the row, which follow those of the rows before it
+         */
+        public int getCandidateCount(int row) {
+            return candidateCount.get(row);
+        }
+
+        public double getCandidateFeature(int candidate, int feature) {
+            return candidateFeatures[feature].get(candidate);
+        }
+
+        double dotFeatures(int row, double[] weights) {
+            double product = 0;
+            for (int k = 0; k < weights.length; k++) {
+                product += weights[k] * features[k].get(row);
+            }
+            return product;
+        }
+
+        double dotCandidate(int candidate, double[] weights) {
+            double product = 0;
+            for (int k = 0; k < weights.length; k++) {
+                product += weights[k] * candidateFeatures[k].get(candidate);
+            }
+            return product;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TraceReader trace passes [name=value ...]");
+            System.exit(1);
+        }
+
+        int passes = Integer.parseInt(args[1]);
+        Hyperparameters hyperparameters = Hyperparameters.defaults();
+        for (int i = 2; i < args.length; i++) {
+            hyperparameters = hyperparameters.withArgument(args[i]);
+        }
+
+        try (TraceReader trace = new TraceReader(Paths.get(args[0]))) {
+            System.out.printf("%d transitions in %d row groups%n", trace.size(), trace.getRowGroupCount());
+
+            double[] weights = new double[trace.getNumFeatures()];
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                trace.learn(weights, hyperparameters.learningRate, hyperparameters.gamma);
+            }
+            System.out.printf("%d passes in %.2f s%n", passes, (System.nanoTime() - start) / 1e9);
+
+            WeightCheckpointer.write(Paths.get(OFFLINE_PATH), weights);
+            for (double weight : weights) {
+                System.out.print(weight + " ");
+            }
+            System.out.println();
+        }
+    }
+}
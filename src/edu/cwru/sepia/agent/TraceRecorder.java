@@ -0,0 +1,267 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every learning transition of the agent to a binary trace file for offline learning, see
+ * TraceReader. A transition is the features of the attack a footman was doing, the reward of the event
+ * and the features of every attack it could make in the state after it, so any weights can be trained
+ * on the trace later.
+ *
+ * Transitions are appended to an in-memory row group on the game thread. A full row group is handed to
+ * a background thread that writes it and hands it back for reuse, so recording only copies numbers into
+ * arrays. Only two row groups exist, and the game thread waits if the writer falls that far behind.
+ *
+ * File format, little endian: int magic "RLTR", int version, int number of features F, then row groups.
+ * A row group is an int byte length of the rest of the group, int rows, int candidates and the columns:
+ * int episode[rows], int turn[rows], int footman[rows], int candidateCount[rows], double reward[rows],
+ * F columns double feature_k[rows], and F columns double candidateFeature_k[candidates]. The candidates
+ * of a row follow those of the row before it.
+ *
+ * Switched on for an agent run from an XML config with -Drlagent.trace=path.
+ */
+public class TraceRecorder implements Closeable {
+
+    public static final int MAGIC = 0x524C5452;
+    public static final int VERSION = 1;
+
+    /**
+     * Where an agent run from an XML config records to, or null to not record
+     */
+    public static final String PATH = System.getProperty("rlagent.trace");
+
+    public static final int GROUP_ROWS = 1024;
+
+    private final Path path;
+    private final int numFeatures;
+    private final FileChannel channel;
+    private final ExecutorService writer;
+    private final BlockingQueue<RowGroup> free = new ArrayBlockingQueue<>(2);
+    private RowGroup current;
+
+    /**
+     * written to on the writer thread only
+     */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+    private volatile IOException failure;
+
+    /**
+     * @param path        the trace file, replaced if it exists, its directory is created if needed
+     * @param numFeatures the length of a feature vector
+     * @throws IOException if the file cannot be created
+     */
+    public TraceRecorder(final Path path, int numFeatures) throws IOException {
+        this.path = path;
+        this.numFeatures = numFeatures;
+
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numFeatures).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "trace-" + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        current = new RowGroup(numFeatures);
+        free.add(new RowGroup(numFeatures));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Starts a transition. Its candidates are added with addCandidate before the next call.
+     * @param episode        the episode number
+     * @param turn           the turn the reward was received on
+     * @param footmanId      the footman
+     * @param reward         the reward of the event
+     * @param features       array holding the features of the attack the footman was doing
+     * @param featureOffset  where those features start
+     */
+    public void beginTransition(int episode, int turn, int footmanId, double reward, double[] features, int featureOffset) {
+        if (current.rows == GROUP_ROWS) {
+            flush();
+        }
+        current.addRow(episode, turn, footmanId, reward, features, featureOffset);
+    }
+
+    /**
+     * Adds the features of an attack the footman could make after the event.
+     * @param features the feature vector, copied
+     */
+    public void addCandidate(double[] features) {
+        current.addCandidate(features);
+    }
+
+    /**
+     * Hands the current row group to the writer thread and takes the spare one.
+     */
+    public void flush() {
+        if (current.rows == 0) {
+            return;
+        }
+
+        final RowGroup full = current;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(full);
+                full.clear();
+                free.add(full);
+            }
+        });
+
+        try {
+            current = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current = new RowGroup(numFeatures);
+        }
+    }
+
+    /**
+     * Writes what is left and closes the file.
+     */
+    @Override
+    public void close() {
+        flush();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(30, TimeUnit.SECONDS);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            System.err.println("Failed to close trace " + path + ". Reason: " + ex.getMessage());
+        }
+    }
+
+    private void write(RowGroup group) {
+        if (failure != null) {
+            return;
+        }
+
+        int rows = group.rows;
+        int candidates = group.candidates;
+        int length = 8 + rows * (4 * 4 + 8) + (rows + candidates) * numFeatures * 8;
+
+        if (buffer.capacity() < 4 + length) {
+            buffer = ByteBuffer.allocateDirect(Math.max(4 + length, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+
+        buffer.putInt(length).putInt(rows).putInt(candidates);
+        putInts(group.episode, rows);
+        putInts(group.turn, rows);
+        putInts(group.footman, rows);
+        putInts(group.candidateCount, rows);
+        putDoubles(group.reward, rows);
+        for (int k = 0; k < numFeatures; k++) {
+            putDoubles(group.features[k], rows);
+        }
+        for (int k = 0; k < numFeatures; k++) {
+            putDoubles(group.candidateFeatures[k], candidates);
+        }
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            System.err.println("Failed to write trace " + path + ", recording stopped. Reason: " + ex.getMessage());
+        }
+    }
+
+    private void putInts(int[] values, int count) {
+        buffer.asIntBuffer().put(values, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+    }
+
+    private void putDoubles(double[] values, int count) {
+        buffer.asDoubleBuffer().put(values, 0, count);
+        buffer.position(buffer.position() + 8 * count);
+    }
+
+    /**
+     * The columns of up to GROUP_ROWS transitions
+     */
+    private static class RowGroup {
+        final int numFeatures;
+
+        int rows;
+        int candidates;
+
+        final int[] episode = new int[GROUP_ROWS];
+        final int[] turn = new int[GROUP_ROWS];
+        final int[] footman = new int[GROUP_ROWS];
+        final int[] candidateCount = new int[GROUP_ROWS];
+        final double[] reward = new double[GROUP_ROWS];
+        final double[][] features;
+        double[][] candidateFeatures;
+
+        RowGroup(int numFeatures) {
+            this.numFeatures = numFeatures;
+            features = new double[numFeatures][GROUP_ROWS];
+            candidateFeatures = new double[numFeatures][GROUP_ROWS];
+        }
+
+        void addRow(int episodeNumber, int turnNumber, int footmanId, double rowReward, double[] rowFeatures, int offset) {
+            episode[rows] = episodeNumber;
+            turn[rows] = turnNumber;
+            footman[rows] = footmanId;
+            reward[rows] = rowReward;
+            candidateCount[rows] = 0;
+            for (int k = 0; k < numFeatures; k++) {
+                features[k][rows] = rowFeatures[offset + k];
+            }
+            rows++;
+        }
+
+        void addCandidate(double[] candidate) {
+            if (candidates == candidateFeatures[0].length) {
+                for (int k = 0; k < numFeatures; k++) {
+                    candidateFeatures[k] = Arrays.copyOf(candidateFeatures[k], candidates * 2);
+                }
+            }
+            for (int k = 0; k < numFeatures; k++) {
+                candidateFeatures[k][candidates] = candidate[k];
+            }
+            candidates++;
+            candidateCount[rows - 1]++;
+        }
+
+        void clear() {
+            rows = 0;
+            candidates = 0;
+        }
+    }
+}
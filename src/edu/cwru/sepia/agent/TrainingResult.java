@@ -0,0 +1,49 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * What a training run produced. Returned by RLTrainer.
+ */
+public class TrainingResult {
+
+    public final Hyperparameters hyperparameters;
+
+    public final int episodes;
+    public final int episodesWon;
+
+    /**
+     * Cumulative reward of every episode in the order they were played
+     */
+    public final double[] episodeRewards;
+
+    /**
+     * Average cumulative reward of each round of evaluation episodes
+     */
+    public final double[] evaluationRewards;
+
+    public final double[] finalWeights;
+
+    /**
+     * The weights with the best evaluation average, null if no evaluation round finished
+     */
+    public final double[] bestWeights;
+    public final double bestReward;
+
+    public TrainingResult(Hyperparameters hyperparameters, int episodes, int episodesWon, double[] episodeRewards,
+                          double[] evaluationRewards, double[] finalWeights, double[] bestWeights, double bestReward) {
+        this.hyperparameters = hyperparameters;
+        this.episodes = episodes;
+        this.episodesWon = episodesWon;
+        this.episodeRewards = episodeRewards;
+        this.evaluationRewards = evaluationRewards;
+        this.finalWeights = finalWeights;
+        this.bestWeights = bestWeights;
+        this.bestReward = bestReward;
+    }
+
+    /**
+     * @return the fraction of episodes won, between 0 and 1
+     */
+    public double getWinRate() {
+        return episodes == 0 ? 0 : (double) episodesWon / episodes;
+    }
+}
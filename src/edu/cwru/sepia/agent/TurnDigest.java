@@ -0,0 +1,238 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * What happened on the previous turn, summed up per unit. Built in one pass over the damage and death
+ * logs so the rewards, the event check and removing dead units never scan the logs themselves. The
+ * agent adds the commands of its units that completed or failed as it goes over their feedback, so the
+ * replan scheduler and the quiet turns do not go over it again.
+ *
+ * All tables are indexed directly by unit ID, which SEPIA hands out densely from 0.
+ */
+public class TurnDigest {
+
+    private static final int NOT_BUILT = Integer.MIN_VALUE;
+
+    private int turn = NOT_BUILT;
+
+    private int[] damageDealt = new int[0];
+    private int[] damageTaken = new int[0];
+
+    /**
+     * number of damage logs with the unit as defender
+     */
+    private int[] hitsTaken = new int[0];
+
+    /**
+     * number of damage logs with the unit as attacker where the defender died
+     */
+    private int[] killingHits = new int[0];
+
+    private final BitSet dead = new BitSet();
+
+    /**
+     * units that appear in the logs, so clearing only touches what was set
+     */
+    private int[] touched = new int[16];
+    private int numTouched;
+
+    /**
+     * units that were hit and units that died, in log order
+     */
+    private int[] defenders = new int[16];
+    private int numDefenders;
+    private int[] deaths = new int[16];
+    private int numDeaths;
+
+    /**
+     * our units whose command completed or failed, see addFeedback
+     */
+    private int[] completed = new int[16];
+    private int numCompleted;
+    private int[] failed = new int[16];
+    private int numFailed;
+
+    /**
+     * Builds the digest of the logs of the turn before the given one unless it is already built.
+     * @param currentTurn the current turn number
+     * @param historyView the history of the episode
+     */
+    public void update(int currentTurn, History.HistoryView historyView) {
+        if (turn == currentTurn) {
+            return;
+        }
+        clear();
+
+        // indexed loops, an iterator would be the only thing the digest allocates
+        List<DeathLog> deathLogs = historyView.getDeathLogs(currentTurn - 1);
+        for (int i = 0; i < deathLogs.size(); i++) {
+            DeathLog deathLog = deathLogs.get(i);
+            int unitId = deathLog.getDeadUnitID();
+            touch(unitId);
+            dead.set(unitId);
+            deaths = append(deaths, numDeaths++, unitId);
+        }
+
+        List<DamageLog> damageLogs = historyView.getDamageLogs(currentTurn - 1);
+        for (int i = 0; i < damageLogs.size(); i++) {
+            DamageLog damageLog = damageLogs.get(i);
+            int attacker = damageLog.getAttackerID();
+            int defender = damageLog.getDefenderID();
+            touch(attacker);
+            touch(defender);
+
+            damageDealt[attacker] += damageLog.getDamage();
+            damageTaken[defender] += damageLog.getDamage();
+            hitsTaken[defender]++;
+            if (dead.get(defender)) {
+                killingHits[attacker]++;
+            }
+            defenders = append(defenders, numDefenders++, defender);
+        }
+
+        turn = currentTurn;
+    }
+
+    /**
+     * Notes the feedback of one of our units' commands on the previous turn. Call it after update for
+     * the same turn, which forgets the feedback of the turn before.
+     * @param result the feedback of the command
+     */
+    public void addFeedback(ActionResult result) {
+        if (result.getFeedback().equals(ActionFeedback.COMPLETED)) {
+            completed = append(completed, numCompleted++, result.getAction().getUnitId());
+        } else if (result.getFeedback().equals(ActionFeedback.FAILED)) {
+            failed = append(failed, numFailed++, result.getAction().getUnitId());
+        }
+    }
+
+    /**
+     * Forgets the digest so the next update rebuilds it. Turn numbers restart every episode.
+     */
+    public void invalidate() {
+        clear();
+    }
+
+    /**
+     * The reward of a footman for the previous turn: -0.1, minus the damage it took and 100 for every hit
+     * it took if it died, plus the damage it dealt and 100 for every hit it dealt on a unit that died.
+     * @param unitId the footman
+     * @return the reward
+     */
+    public double getReward(int unitId) {
+        double reward = -0.1;
+        if (unitId >= damageDealt.length) {
+            return reward;
+        }
+
+        if (dead.get(unitId)) {
+            reward -= 100 * hitsTaken[unitId];
+        }
+        reward -= damageTaken[unitId];
+
+        reward += 100 * killingHits[unitId];
+        reward += damageDealt[unitId];
+        return reward;
+    }
+
+    public boolean died(int unitId) {
+        return dead.get(unitId);
+    }
+
+    public int getDamageDealt(int unitId) {
+        return unitId < damageDealt.length ? damageDealt[unitId] : 0;
+    }
+
+    public int getDamageTaken(int unitId) {
+        return unitId < damageTaken.length ? damageTaken[unitId] : 0;
+    }
+
+    public int getDeathCount() {
+        return numDeaths;
+    }
+
+    public int getDeath(int index) {
+        return deaths[index];
+    }
+
+    /**
+     * @return the number of damage logs, the defender of each is in getDefender
+     */
+    public int getHitCount() {
+        return numDefenders;
+    }
+
+    public int getDefender(int index) {
+        return defenders[index];
+    }
+
+    /**
+     * @return the number of our units whose command completed, each is in getCompleted
+     */
+    public int getCompletedCount() {
+        return numCompleted;
+    }
+
+    public int getCompleted(int index) {
+        return completed[index];
+    }
+
+    /**
+     * @return the number of our units whose command failed, each is in getFailed
+     */
+    public int getFailedCount() {
+        return numFailed;
+    }
+
+    public int getFailed(int index) {
+        return failed[index];
+    }
+
+    private void clear() {
+        for (int i = 0; i < numTouched; i++) {
+            int unitId = touched[i];
+            damageDealt[unitId] = 0;
+            damageTaken[unitId] = 0;
+            hitsTaken[unitId] = 0;
+            killingHits[unitId] = 0;
+            dead.clear(unitId);
+        }
+        numTouched = 0;
+        numDefenders = 0;
+        numDeaths = 0;
+        numCompleted = 0;
+        numFailed = 0;
+        turn = NOT_BUILT;
+    }
+
+    /**
+     * Makes room for a unit and remembers to clear it
+     */
+    private void touch(int unitId) {
+        if (unitId >= damageDealt.length) {
+            int newSize = Math.max(unitId + 1, damageDealt.length * 2);
+            damageDealt = Arrays.copyOf(damageDealt, newSize);
+            damageTaken = Arrays.copyOf(damageTaken, newSize);
+            hitsTaken = Arrays.copyOf(hitsTaken, newSize);
+            killingHits = Arrays.copyOf(killingHits, newSize);
+        }
+        touched = append(touched, numTouched++, unitId);
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+}
@@ -0,0 +1,190 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Times the phases of the agent's turn with latency histograms. Switched on at startup with
+ * -Drlagent.profile=true. ENABLED is a compile time constant for the JIT, so when it is off the timing code
+ * guarded by it is removed from the hot path.
+ *
+ * The histograms have 8 buckets per power of two, so percentiles are accurate to within 12.5%.
+ * The report is JSON with one object per phase and the turn counters.
+ */
+public class TurnProfiler {
+
+    public static final boolean ENABLED = Boolean.getBoolean("rlagent.profile");
+
+    /**
+     * Where the report is written when the program ends, -Drlagent.profile.out=path to change it
+     */
+    public static final String REPORT_PATH = System.getProperty("rlagent.profile.out", "agent_profile.json");
+
+    public enum Phase {
+        INITIAL_STEP,
+        MIDDLE_STEP,
+        TERMINAL_STEP,
+        UPDATE_FOOTMEN,
+        UPDATE_ACTIONS,
+        EVENT_CHECK,
+        REWARDS,
+        WEIGHT_UPDATE,
+        REPLAY,
+        SELECT_ACTIONS
+    }
+
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+    private long eventTurns;
+    private long quietTurns;
+    private long decisions;
+    private long featureValues;
+
+    public TurnProfiler() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time since start for a phase.
+     * @param phase the phase that just finished
+     * @param start System.nanoTime() when the phase started
+     * @return the current System.nanoTime(), the start of the next phase
+     */
+    public long record(Phase phase, long start) {
+        long now = System.nanoTime();
+        histograms[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    public void countTurn(boolean event) {
+        if (event) {
+            eventTurns++;
+        } else {
+            quietTurns++;
+        }
+    }
+
+    /**
+     * @param count number of footmen that chose a target
+     */
+    public void countDecisions(int count) {
+        decisions += count;
+    }
+
+    /**
+     * @param count number of features computed, over all footman/enemy pairs
+     */
+    public void countFeatures(int count) {
+        featureValues += count;
+    }
+
+    /**
+     * Writes the report as JSON.
+     * @param out where to write to
+     * @throws IOException if writing fails
+     */
+    public void writeReport(Writer out) throws IOException {
+        out.write("{\n");
+        out.write(String.format(Locale.ROOT, "  \"eventTurns\": %d,\n  \"quietTurns\": %d,\n", eventTurns, quietTurns));
+        out.write(String.format(Locale.ROOT, "  \"decisions\": %d,\n  \"features\": %d,\n", decisions, featureValues));
+        out.write(String.format(Locale.ROOT, "  \"featuresPerDecision\": %.2f,\n",
+                decisions == 0 ? 0.0 : (double) featureValues / decisions));
+        out.write("  \"phases\": {\n");
+
+        Phase[] phases = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            Histogram histogram = histograms[i];
+            out.write(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"meanNanos\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}%s\n",
+                    phases[i].name().toLowerCase(Locale.ROOT), histogram.count, histogram.mean(),
+                    histogram.percentile(.5), histogram.percentile(.9), histogram.percentile(.99),
+                    histogram.percentile(.999), histogram.max, i < phases.length - 1 ? "," : ""));
+        }
+
+        out.write("  }\n}\n");
+    }
+
+    /**
+     * Writes the report to a file, see writeReport.
+     * @param path the file, overwritten
+     */
+    public void writeReport(String path) {
+        try (Writer out = new BufferedWriter(new FileWriter(path, false))) {
+            writeReport(out);
+        } catch (IOException ex) {
+            System.err.println("Failed to write the profile. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond durations. Values below 16 get a bucket each, above that every
+     * power of two is split into 8 buckets.
+     */
+    private static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR = 16;
+
+        private final long[] counts = new long[LINEAR + (63 - 4) * SUB_BUCKETS];
+        private long count;
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts[bucket(nanos)]++;
+            count++;
+            total += nanos;
+            if (nanos > max) {
+                max = nanos;
+            }
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return the upper end of the bucket holding the given fraction of the values
+         */
+        long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+
+import java.util.Arrays;
+
+/**
+ * A set of living units stored as parallel arrays. Every unit has a dense slot from 0 to size() - 1.
+ * Removing a unit moves the last unit into its slot, so slots are only stable until the next removal.
+ *
+ * Health and position are copied out of the state once per turn by snapshot so the feature code can
+ * read plain arrays instead of asking the state view for the same unit over and over.
+ */
+public class UnitRoster {
+
+    public static final int NO_SLOT = -1;
+
+    private int size = 0;
+    private int[] ids = new int[16];
+    private int[] hp = new int[16];
+    private int[] x = new int[16];
+    private int[] y = new int[16];
+
+    /**
+     * slot of each unit indexed by unit ID
+     */
+    private int[] slotOf = new int[0];
+
+    /**
+     * Removes every unit.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            slotOf[ids[i]] = NO_SLOT;
+        }
+        size = 0;
+    }
+
+    /**
+     * Adds a unit to the end of the roster if it is not already in it.
+     * @param unitId the unit to add
+     */
+    public void add(int unitId) {
+        if (contains(unitId)) {
+            return;
+        }
+
+        if (unitId >= slotOf.length) {
+            int oldSize = slotOf.length;
+            slotOf = Arrays.copyOf(slotOf, Math.max(unitId + 1, oldSize * 2));
+            Arrays.fill(slotOf, oldSize, slotOf.length, NO_SLOT);
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            hp = Arrays.copyOf(hp, size * 2);
+            x = Arrays.copyOf(x, size * 2);
+            y = Arrays.copyOf(y, size * 2);
+        }
+
+        ids[size] = unitId;
+        slotOf[unitId] = size;
+        size++;
+    }
+
+    /**
+     * Removes a unit by moving the last unit into its slot.
+     * @param unitId the unit to remove
+     * @return true if the unit was in the roster
+     */
+    public boolean remove(int unitId) {
+        int slot = slotOf(unitId);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+
+        int last = size - 1;
+        ids[slot] = ids[last];
+        hp[slot] = hp[last];
+        x[slot] = x[last];
+        y[slot] = y[last];
+        slotOf[ids[slot]] = slot;
+        slotOf[unitId] = NO_SLOT;
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Copies the health and position of every unit out of the state.
+     * @param stateView the current state
+     */
+    public void snapshot(State.StateView stateView) {
+        for (int i = 0; i < size; i++) {
+            UnitView unit = stateView.getUnit(ids[i]);
+            hp[i] = unit.getHP();
+            x[i] = unit.getXPosition();
+            y[i] = unit.getYPosition();
+        }
+    }
+
+    public boolean contains(int unitId) {
+        return slotOf(unitId) != NO_SLOT;
+    }
+
+    /**
+     * @param unitId the unit to look up
+     * @return the slot of the unit or NO_SLOT if it is not in the roster
+     */
+    public int slotOf(int unitId) {
+        return unitId >= 0 && unitId < slotOf.length ? slotOf[unitId] : NO_SLOT;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getId(int slot) {
+        return ids[slot];
+    }
+
+    public int getHP(int slot) {
+        return hp[slot];
+    }
+
+    public int getX(int slot) {
+        return x[slot];
+    }
+
+    public int getY(int slot) {
+        return y[slot];
+    }
+
+    /**
+     * The backing arrays are exposed so per-turn tables can be built without copying.
+     * Only the first size() entries are valid.
+     */
+    int[] ids() {
+        return ids;
+    }
+
+    int[] hps() {
+        return hp;
+    }
+
+    int[] xs() {
+        return x;
+    }
+
+    int[] ys() {
+        return y;
+    }
+}
@@ -0,0 +1,184 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Saves weight vectors to a binary checkpoint file on a background thread. Saving only hands a copy of
+ * the weights to the writer thread, and if several saves arrive while a write is running only the latest
+ * one is written.
+ *
+ * File format, big endian:
+ * int magic "RLWT", int version, int number of weights, the weights as doubles, long CRC32 of everything before it.
+ *
+ * A checkpoint is written to a temporary file in the same directory and then renamed over the old one,
+ * so a crash leaves either the old or the new checkpoint but never a partial one.
+ */
+public class WeightCheckpointer implements Closeable {
+
+    public static final int MAGIC = 0x524C5754;
+    public static final int VERSION = 1;
+
+    private final Path path;
+    private final AtomicReference<double[]> pending = new AtomicReference<>();
+    private final ExecutorService writer;
+
+    /**
+     * @param path the checkpoint file, its directory is created if needed
+     */
+    public WeightCheckpointer(final Path path) {
+        this.path = path;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpoint-" + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules the weights to be written. Returns right away.
+     * @param weights the weights, copied
+     */
+    public void save(double[] weights) {
+        if (pending.getAndSet(weights.clone()) == null) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the writer thread and writes whatever is still pending. Called when the program ends.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writePending();
+    }
+
+    private void writePending() {
+        double[] weights = pending.getAndSet(null);
+        if (weights == null) {
+            return;
+        }
+
+        try {
+            write(path, weights);
+        } catch (IOException ex) {
+            System.err.println("Failed to write weight checkpoint. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes a checkpoint on the calling thread.
+     * @param path    the checkpoint file
+     * @param weights the weights
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path path, double[] weights) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 8 * weights.length + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(weights.length);
+        for (double weight : weights) {
+            buffer.putDouble(weight);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        replace(path, buffer);
+    }
+
+    /**
+     * Writes a file through a temporary file that is renamed over it, so it is either the old or the new
+     * file but never a partial one.
+     * @param path    the file, its directory is created if needed
+     * @param content the new content, from its position to its limit
+     * @throws IOException if the file cannot be written
+     */
+    static void replace(Path path, ByteBuffer content) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                channel.force(true);
+            }
+
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads a checkpoint.
+     * @param path the checkpoint file
+     * @return the weights
+     * @throws IOException if the file cannot be read or is not a valid checkpoint
+     */
+    public static double[] read(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < 20 || buffer.getInt() != MAGIC) {
+            throw new IOException(path + " is not a weight checkpoint");
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != 8 * count + 8) {
+            throw new IOException(path + " is truncated");
+        }
+
+        double[] weights = new double[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = buffer.getDouble();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        if (buffer.getLong() != crc.getValue()) {
+            throw new IOException(path + " failed its checksum");
+        }
+
+        return weights;
+    }
+}